@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2016-2019 The CallKeep Authors (see the AUTHORS file)
+ * SPDX-License-Identifier: ISC, MIT
+ *
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package io.wazo.callkeep;
+
+import android.app.Activity;
+import android.app.Application;
+import android.content.Context;
+import android.os.Bundle;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+/**
+ * Tracks whether the app has live and visible activities, from the activity lifecycle
+ * callbacks and from the activity the plugin is attached to.
+ *
+ * The callbacks run on the main thread and update two volatile flags, so reading them from any
+ * thread is free.
+ */
+public final class AppVisibilityTracker {
+    private static final String TAG = "RNCK:AppVisibilityTracker";
+
+    // Main thread only. Weak, an activity we missed the destruction of must not leak.
+    private static final Set<Activity> liveActivities = Collections.newSetFromMap(new WeakHashMap<Activity, Boolean>());
+    private static final Set<Activity> startedActivities = Collections.newSetFromMap(new WeakHashMap<Activity, Boolean>());
+    private static volatile boolean running = false;
+    private static volatile boolean foreground = false;
+    private static boolean installed = false;
+
+    private AppVisibilityTracker() {
+    }
+
+    /**
+     * Registers the lifecycle callbacks, once per process. Must be called on the main thread.
+     */
+    public static void install(Context context) {
+        if (installed) {
+            return;
+        }
+        Context appContext = context.getApplicationContext();
+        if (!(appContext instanceof Application)) {
+            Log.w(TAG, "install: no Application, relying on the attached activity only");
+            return;
+        }
+        ((Application) appContext).registerActivityLifecycleCallbacks(callbacks);
+        installed = true;
+    }
+
+    /**
+     * @return whether the app has an activity, visible or not.
+     */
+    public static boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * @return whether one of the app activities is visible.
+     */
+    public static boolean isForeground() {
+        return foreground;
+    }
+
+    /**
+     * Accounts for the activity the plugin is attached to, which was usually created before
+     * the callbacks were installed. Must be called on the main thread.
+     */
+    static void onActivityAttached(@Nullable Activity activity) {
+        if (activity == null || activity.isFinishing()) {
+            return;
+        }
+        liveActivities.add(activity);
+        // Plugins are attached while their activity is being created or shown
+        startedActivities.add(activity);
+        update();
+    }
+
+    private static void update() {
+        running = !liveActivities.isEmpty();
+        foreground = !startedActivities.isEmpty();
+    }
+
+    private static final Application.ActivityLifecycleCallbacks callbacks = new Application.ActivityLifecycleCallbacks() {
+        @Override
+        public void onActivityCreated(Activity activity, @Nullable Bundle savedInstanceState) {
+            liveActivities.add(activity);
+            update();
+        }
+
+        @Override
+        public void onActivityStarted(Activity activity) {
+            liveActivities.add(activity);
+            startedActivities.add(activity);
+            update();
+        }
+
+        @Override
+        public void onActivityResumed(Activity activity) {
+        }
+
+        @Override
+        public void onActivityPaused(Activity activity) {
+        }
+
+        @Override
+        public void onActivityStopped(Activity activity) {
+            startedActivities.remove(activity);
+            update();
+        }
+
+        @Override
+        public void onActivitySaveInstanceState(Activity activity, Bundle outState) {
+        }
+
+        @Override
+        public void onActivityDestroyed(Activity activity) {
+            liveActivities.remove(activity);
+            startedActivities.remove(activity);
+            update();
+        }
+    };
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright (c) 2016-2019 The CallKeep Authors (see the AUTHORS file)
+ * SPDX-License-Identifier: ISC, MIT
+ *
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package io.wazo.callkeep;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+import io.flutter.FlutterInjector;
+import io.flutter.embedding.engine.FlutterEngine;
+import io.flutter.embedding.engine.FlutterEngineCache;
+import io.flutter.embedding.engine.dart.DartExecutor;
+import io.flutter.embedding.engine.loader.FlutterLoader;
+import io.flutter.plugin.common.MethodChannel;
+import io.flutter.view.FlutterCallbackInformation;
+import io.wazo.callkeep.utils.ConstraintsMap;
+import io.wazo.callkeep.utils.LatencyHistogram;
+
+/**
+ * Headless Flutter engine running the Dart handler registered with registerBackgroundHandler()
+ * when the app is woken up for a call.
+ *
+ * The engine is started once, kept in the {@link FlutterEngineCache} and reused for the
+ * following wake-ups. Wake-ups arriving while it starts are queued until the Dart dispatcher
+ * says it is listening. The callback handles are stored so a cold process can start the
+ * engine without the app running.
+ *
+ * All methods must be called on the main thread.
+ */
+public final class BackgroundEngine {
+    private static final String TAG = "RNCK:BackgroundEngine";
+    static final String ENGINE_ID = "callkeep_background";
+    private static final String CHANNEL = "FlutterCallKeep.Background";
+    private static final String PREFERENCES = "io.wazo.callkeep.background";
+    private static final String KEY_DISPATCHER = "dispatcherHandle";
+    private static final String KEY_HANDLER = "handlerHandle";
+
+    private static final Handler mainHandler = new Handler(Looper.getMainLooper());
+    @Nullable
+    private static MethodChannel channel;
+    private static boolean starting = false;
+    private static boolean ready = false;
+    private static long handlerHandle = 0;
+    // Wake-ups waiting for the dispatcher to listen
+    private static final ArrayList<Map<String, Object>> queue = new ArrayList<>();
+
+    private static long startedAtNanos = 0;
+    private static final LatencyHistogram startLatency = new LatencyHistogram();
+    private static int engineStarts = 0;
+    private static int deliveries = 0;
+
+    private BackgroundEngine() {
+    }
+
+    static void registerCallbacks(Context context, long dispatcherHandle, long handler) {
+        Log.d(TAG, "registerCallbacks");
+        getPreferences(context).edit()
+                .putLong(KEY_DISPATCHER, dispatcherHandle)
+                .putLong(KEY_HANDLER, handler)
+                .apply();
+        handlerHandle = handler;
+    }
+
+    /**
+     * Starts the engine unless it already runs or no Dart handler is registered.
+     */
+    public static void prewarm(Context context) {
+        if (starting || (ready && FlutterEngineCache.getInstance().contains(ENGINE_ID))) {
+            return;
+        }
+        ready = false;
+        final Context appContext = context.getApplicationContext();
+        SharedPreferences preferences = getPreferences(appContext);
+        final long dispatcherHandle = preferences.getLong(KEY_DISPATCHER, 0);
+        handlerHandle = preferences.getLong(KEY_HANDLER, 0);
+        if (dispatcherHandle == 0 || handlerHandle == 0) {
+            Log.d(TAG, "No background handler registered");
+            return;
+        }
+
+        Log.d(TAG, "Starting the background engine");
+        starting = true;
+        startedAtNanos = System.nanoTime();
+        final FlutterLoader loader = FlutterInjector.instance().flutterLoader();
+        loader.startInitialization(appContext);
+        loader.ensureInitializationCompleteAsync(appContext, null, mainHandler, () -> launch(appContext, loader, dispatcherHandle));
+    }
+
+    /**
+     * Hands a wake-up to the Dart handler, starting the engine if needed.
+     */
+    static void deliver(Context context, @Nullable String uuid, @Nullable String number, @Nullable String name) {
+        Map<String, Object> call = new HashMap<>();
+        call.put("callUUID", uuid);
+        call.put("handle", number);
+        call.put("name", name);
+        queue.add(call);
+        prewarm(context);
+        if (ready) {
+            flush();
+        } else if (!starting) {
+            // No handler to run
+            queue.clear();
+        }
+    }
+
+    static ConstraintsMap getMetrics() {
+        ConstraintsMap metrics = startLatency.toConstraintsMap();
+        metrics.putBoolean("ready", ready);
+        metrics.putInt("engineStarts", engineStarts);
+        metrics.putInt("deliveries", deliveries);
+        metrics.putInt("queued", queue.size());
+        return metrics;
+    }
+
+    private static void launch(Context context, FlutterLoader loader, long dispatcherHandle) {
+        FlutterCallbackInformation info = FlutterCallbackInformation.lookupCallbackInformation(dispatcherHandle);
+        if (info == null) {
+            Log.w(TAG, "The registered background dispatcher can not be found");
+            starting = false;
+            queue.clear();
+            return;
+        }
+
+        FlutterEngine engine = new FlutterEngine(context);
+        channel = new MethodChannel(engine.getDartExecutor(), CHANNEL);
+        channel.setMethodCallHandler((call, result) -> {
+            if ("initialized".equals(call.method)) {
+                onReady();
+                result.success(null);
+            } else {
+                result.notImplemented();
+            }
+        });
+        engine.getDartExecutor().executeDartCallback(new DartExecutor.DartCallback(context.getAssets(), loader.findAppBundlePath(), info));
+        FlutterEngineCache.getInstance().put(ENGINE_ID, engine);
+        engineStarts++;
+    }
+
+    private static void onReady() {
+        long elapsedNanos = System.nanoTime() - startedAtNanos;
+        startLatency.record(elapsedNanos);
+        Log.d(TAG, "Background engine ready after " + elapsedNanos / 1000000 + "ms");
+        starting = false;
+        ready = true;
+        flush();
+    }
+
+    private static void flush() {
+        if (channel == null) {
+            return;
+        }
+        for (Map<String, Object> call : queue) {
+            Map<String, Object> args = new HashMap<>();
+            args.put("handlerHandle", handlerHandle);
+            args.put("call", call);
+            channel.invokeMethod("onWakeUp", args);
+            deliveries++;
+        }
+        queue.clear();
+    }
+
+    private static SharedPreferences getPreferences(Context context) {
+        return context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (c) 2016-2019 The CallKeep Authors (see the AUTHORS file)
+ * SPDX-License-Identifier: ISC, MIT
+ *
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package io.wazo.callkeep;
+
+import androidx.annotation.Nullable;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static io.wazo.callkeep.Constants.*;
+
+/**
+ * Immutable call event travelling from the connections to {@link CallKeepModule}.
+ */
+public final class CallEvent {
+    public static final String EXTRA_DTMF = "DTMF";
+
+    public final String action;
+    public final @Nullable String callUUID;
+    public final @Nullable String number;
+    public final @Nullable String callerName;
+    public final @Nullable String digits;
+
+    public CallEvent(String action, @Nullable String callUUID, @Nullable String number,
+                     @Nullable String callerName, @Nullable String digits) {
+        this.action = action;
+        this.callUUID = callUUID;
+        this.number = number;
+        this.callerName = callerName;
+        this.digits = digits;
+    }
+
+    public static CallEvent of(String action) {
+        return new CallEvent(action, null, null, null, null);
+    }
+
+    public static CallEvent of(String action, @Nullable Map<String, String> attributes) {
+        if (attributes == null) {
+            return of(action);
+        }
+        return new CallEvent(action, attributes.get(EXTRA_CALL_UUID), attributes.get(EXTRA_CALL_NUMBER),
+                attributes.get(EXTRA_CALLER_NAME), attributes.get(EXTRA_DTMF));
+    }
+
+    public CallEvent withDigits(String digits) {
+        return new CallEvent(action, callUUID, number, callerName, digits);
+    }
+
+    /**
+     * @return the attribute map carried by the LocalBroadcastManager compatibility path.
+     */
+    public HashMap<String, String> toAttributeMap() {
+        HashMap<String, String> attributes = new HashMap<>();
+        if (callUUID != null) {
+            attributes.put(EXTRA_CALL_UUID, callUUID);
+        }
+        if (number != null) {
+            attributes.put(EXTRA_CALL_NUMBER, number);
+        }
+        if (callerName != null) {
+            attributes.put(EXTRA_CALLER_NAME, callerName);
+        }
+        if (digits != null) {
+            attributes.put(EXTRA_DTMF, digits);
+        }
+        return attributes;
+    }
+
+    @Override
+    public String toString() {
+        return "CallEvent{" + action + ", callUUID=" + callUUID + "}";
+    }
+}
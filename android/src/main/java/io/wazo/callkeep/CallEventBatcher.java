@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) 2016-2019 The CallKeep Authors (see the AUTHORS file)
+ * SPDX-License-Identifier: ISC, MIT
+ *
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package io.wazo.callkeep;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import io.wazo.callkeep.utils.ConstraintsMap;
+
+/**
+ * Collects the events sent to Flutter during a main looper turn and hands them to the
+ * {@link Sink} as a single message once the turn is over.
+ *
+ * Events whose name is in the coalescing set replace any pending event with the same name and
+ * call uuid, so a mute/unmute/mute flap reaches Dart as its final state only.
+ */
+class CallEventBatcher {
+    static final List<String> DEFAULT_COALESCED_EVENTS = Arrays.asList(
+            "CallKeepDidPerformSetMutedCallAction",
+            "CallKeepDidToggleHoldAction"
+    );
+
+    interface Sink {
+        void send(String eventName, ConstraintsMap params);
+
+        void sendBatch(List<Event> events);
+    }
+
+    static final class Event {
+        final String name;
+        final ConstraintsMap params;
+
+        Event(String name, ConstraintsMap params) {
+            this.name = name;
+            this.params = params;
+        }
+
+        @Nullable
+        String callUUID() {
+            return params.getString("callUUID", null);
+        }
+    }
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Sink sink;
+    private final ArrayList<Event> pending = new ArrayList<>();
+    private volatile Set<String> coalescedEvents = new HashSet<>(DEFAULT_COALESCED_EVENTS);
+    private boolean flushScheduled = false;
+
+    private final Runnable flush = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    CallEventBatcher(Sink sink) {
+        this.sink = sink;
+    }
+
+    void setCoalescedEvents(Collection<String> eventNames) {
+        coalescedEvents = new HashSet<>(eventNames);
+    }
+
+    synchronized void add(String eventName, ConstraintsMap params) {
+        Event event = new Event(eventName, params);
+        if (coalescedEvents.contains(eventName)) {
+            removePending(eventName, event.callUUID());
+        }
+        pending.add(event);
+
+        if (!flushScheduled) {
+            flushScheduled = true;
+            handler.post(flush);
+        }
+    }
+
+    void flush() {
+        List<Event> events;
+        synchronized (this) {
+            flushScheduled = false;
+            if (pending.isEmpty()) {
+                return;
+            }
+            events = new ArrayList<>(pending);
+            pending.clear();
+        }
+
+        if (events.size() == 1) {
+            Event event = events.get(0);
+            sink.send(event.name, event.params);
+        } else {
+            sink.sendBatch(events);
+        }
+    }
+
+    synchronized void clear() {
+        pending.clear();
+    }
+
+    private void removePending(String eventName, @Nullable String callUUID) {
+        for (int i = pending.size() - 1; i >= 0; i--) {
+            Event event = pending.get(i);
+            if (!event.name.equals(eventName)) {
+                continue;
+            }
+            String pendingUUID = event.callUUID();
+            if (callUUID == null ? pendingUUID == null : callUUID.equals(pendingUUID)) {
+                pending.remove(i);
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2016-2019 The CallKeep Authors (see the AUTHORS file)
+ * SPDX-License-Identifier: ISC, MIT
+ *
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package io.wazo.callkeep;
+
+import android.content.Context;
+import android.content.Intent;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import androidx.localbroadcastmanager.content.LocalBroadcastManager;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static io.wazo.callkeep.Constants.ACTION_CHECK_REACHABILITY;
+import static io.wazo.callkeep.Constants.ACTION_NATIVE_INCOMING_CALL;
+import static io.wazo.callkeep.Constants.ACTION_WAKE_APP;
+
+/**
+ * In-process bus delivering {@link CallEvent}s from the connections to their listeners.
+ *
+ * Every event goes through one dispatcher on the main looper, so listeners see events in the
+ * order they were posted. When legacy broadcasts are enabled the events are instead sent as
+ * LocalBroadcastManager intents carrying a serialized attribute map, as older versions did.
+ *
+ * While nobody listens, which means no Flutter engine is attached, events are recorded in the
+ * {@link CallEventJournal} so {@link CallKeepModule} can replay them once Dart is back.
+ */
+public final class CallEventBus {
+    private static final String TAG = "RNCK:CallEventBus";
+
+    public interface Listener {
+        void onCallEvent(CallEvent event);
+    }
+
+    private static final Handler dispatcher = new Handler(Looper.getMainLooper());
+    private static final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<>();
+    private static volatile boolean legacyBroadcasts = false;
+
+    private CallEventBus() {
+    }
+
+    public static void setLegacyBroadcasts(boolean value) {
+        Log.d(TAG, "setLegacyBroadcasts: " + value);
+        legacyBroadcasts = value;
+    }
+
+    public static boolean isLegacyBroadcasts() {
+        return legacyBroadcasts;
+    }
+
+    public static void addListener(Listener listener) {
+        listeners.addIfAbsent(listener);
+    }
+
+    public static void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    public static boolean hasListeners() {
+        return !listeners.isEmpty();
+    }
+
+    public static void post(final Context context, final CallEvent event) {
+        dispatcher.post(new Runnable() {
+            @Override
+            public void run() {
+                if (listeners.isEmpty()) {
+                    record(context, event);
+                } else if (legacyBroadcasts) {
+                    broadcast(context, event);
+                } else {
+                    dispatch(event);
+                }
+            }
+        });
+    }
+
+    private static void record(Context context, CallEvent event) {
+        if (!isJournaled(event.action)) {
+            return;
+        }
+        CallEventJournal journal = CallEventJournal.getInstance(context);
+        if (journal != null) {
+            int sequence = journal.append(event);
+            Log.d(TAG, "No listener, journaled " + event + " as " + sequence);
+        }
+    }
+
+    private static boolean isJournaled(String action) {
+        // Reachability checks and wake ups are only meaningful while they are pending, and
+        // natively displayed calls are announced again when Dart attaches.
+        return !ACTION_CHECK_REACHABILITY.equals(action) && !ACTION_WAKE_APP.equals(action)
+                && !ACTION_NATIVE_INCOMING_CALL.equals(action);
+    }
+
+    private static void dispatch(CallEvent event) {
+        for (Listener listener : listeners) {
+            listener.onCallEvent(event);
+        }
+    }
+
+    private static void broadcast(Context context, CallEvent event) {
+        Intent intent = new Intent(event.action);
+        Bundle extras = new Bundle();
+        extras.putSerializable("attributeMap", event.toAttributeMap());
+        intent.putExtras(extras);
+        LocalBroadcastManager.getInstance(context).sendBroadcast(intent);
+    }
+}
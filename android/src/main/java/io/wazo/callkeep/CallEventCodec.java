@@ -0,0 +1,280 @@
+/*
+ * Copyright (c) 2016-2019 The CallKeep Authors (see the AUTHORS file)
+ * SPDX-License-Identifier: ISC, MIT
+ *
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package io.wazo.callkeep;
+
+import androidx.annotation.Nullable;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.UUID;
+
+import io.wazo.callkeep.utils.ConstraintsMap;
+
+/**
+ * Binary encoding of the events sent on the {@code FlutterCallKeep.EventBinary} channel,
+ * decoded by {@code CallKeepEventDecoder} in lib/src/event.dart.
+ *
+ * A message is a sequence of records, each starting with a one byte tag. Call uuids are
+ * interned: the first record about a call is preceded by a {@link #TAG_DEFINE_CALL} record
+ * binding a small per-session id to the uuid, and later records only carry the id. Until Dart
+ * acknowledges a message defining an id, every message using that id defines it again, so a
+ * dropped message never leaves Dart with ids it cannot resolve.
+ *
+ * <pre>
+ * DEFINE_CALL  tag, varint id, byte kind, (16 byte uuid | string)
+ * START_CALL   tag, varint id, string handle, string name
+ * ANSWER/END   tag, varint id
+ * MUTED/HOLD   tag, varint id, byte value
+ * DTMF         tag, varint id, byte count, count ascii digits
+ * AUDIO/REACH  tag
+ * SEQUENCE     tag, varint sequence of the journaled event in the next record
+ * </pre>
+ *
+ * Strings are a varint of the UTF-8 length plus one, zero standing for null. Id zero stands
+ * for a missing call uuid.
+ */
+class CallEventCodec {
+    static final byte TAG_DEFINE_CALL = 0;
+    static final byte TAG_START_CALL = 1;
+    static final byte TAG_ANSWER_CALL = 2;
+    static final byte TAG_END_CALL = 3;
+    static final byte TAG_AUDIO_SESSION = 4;
+    static final byte TAG_MUTED = 5;
+    static final byte TAG_HOLD = 6;
+    static final byte TAG_DTMF = 7;
+    static final byte TAG_CHECK_REACHABILITY = 8;
+    static final byte TAG_SEQUENCE = 9;
+
+    private static final byte KIND_UUID = 0;
+    private static final byte KIND_STRING = 1;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final HashMap<String, Byte> TAGS = new HashMap<>();
+
+    static {
+        TAGS.put("CallKeepDidReceiveStartCallAction", TAG_START_CALL);
+        TAGS.put("CallKeepPerformAnswerCallAction", TAG_ANSWER_CALL);
+        TAGS.put("CallKeepPerformEndCallAction", TAG_END_CALL);
+        TAGS.put("CallKeepDidActivateAudioSession", TAG_AUDIO_SESSION);
+        TAGS.put("CallKeepDidPerformSetMutedCallAction", TAG_MUTED);
+        TAGS.put("CallKeepDidToggleHoldAction", TAG_HOLD);
+        TAGS.put("CallKeepDidPerformDTMFAction", TAG_DTMF);
+        TAGS.put("CallKeepCheckReachability", TAG_CHECK_REACHABILITY);
+    }
+
+    /* An encoded message, with the call ids it defines */
+    static final class Message {
+        final ByteBuffer buffer;
+        private final int generation;
+        private final List<String> definedCalls;
+
+        private Message(ByteBuffer buffer, int generation, List<String> definedCalls) {
+            this.buffer = buffer;
+            this.generation = generation;
+            this.definedCalls = definedCalls;
+        }
+    }
+
+    private final HashMap<String, Integer> callIds = new HashMap<>();
+    // Calls whose id Dart acknowledged, the others are defined again in each message
+    private final HashSet<String> acknowledgedCalls = new HashSet<>();
+    // Calls defined in the message being encoded
+    private final ArrayList<String> definedCalls = new ArrayList<>();
+    // Bumped by reset(), so the acknowledgement of an older message is ignored
+    private int generation = 0;
+    private int nextCallId = 1;
+    private byte[] scratch = new byte[256];
+    private int position = 0;
+
+    static boolean canEncode(String eventName) {
+        return TAGS.containsKey(eventName);
+    }
+
+    /**
+     * Forgets the interned call ids, to be called whenever the Dart side starts over.
+     */
+    synchronized void reset() {
+        callIds.clear();
+        acknowledgedCalls.clear();
+        generation++;
+        nextCallId = 1;
+    }
+
+    /**
+     * Records that Dart decoded the message, the ids it defined need not be defined again.
+     */
+    synchronized void acknowledge(Message message) {
+        if (message.generation == generation) {
+            acknowledgedCalls.addAll(message.definedCalls);
+        }
+    }
+
+    /**
+     * @return the message holding the encoded events in a direct buffer, or null if one of
+     * them has no binary representation.
+     */
+    @Nullable
+    synchronized Message encode(List<CallEventBatcher.Event> events) {
+        for (CallEventBatcher.Event event : events) {
+            if (!canEncode(event.name)) {
+                return null;
+            }
+        }
+
+        position = 0;
+        definedCalls.clear();
+        for (CallEventBatcher.Event event : events) {
+            write(event);
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocateDirect(position);
+        buffer.put(scratch, 0, position);
+        buffer.flip();
+        return new Message(buffer, generation, new ArrayList<>(definedCalls));
+    }
+
+    private void write(CallEventBatcher.Event event) {
+        byte tag = TAGS.get(event.name);
+        ConstraintsMap params = event.params;
+
+        int sequence = params.getInt("sequence", 0);
+        if (sequence > 0) {
+            writeByte(TAG_SEQUENCE);
+            writeVarint(sequence);
+        }
+
+        if (tag == TAG_AUDIO_SESSION || tag == TAG_CHECK_REACHABILITY) {
+            writeByte(tag);
+            return;
+        }
+
+        int callId = intern(event.callUUID());
+        writeByte(tag);
+        writeVarint(callId);
+
+        switch (tag) {
+            case TAG_START_CALL:
+                writeString(params.getString("handle", null));
+                writeString(params.getString("name", null));
+                break;
+            case TAG_MUTED:
+                writeByte(params.getBoolean("muted", false) ? (byte) 1 : (byte) 0);
+                break;
+            case TAG_HOLD:
+                writeByte(params.getBoolean("hold", false) ? (byte) 1 : (byte) 0);
+                break;
+            case TAG_DTMF:
+                String digits = params.getString("digits", null);
+                int count = digits != null ? Math.min(digits.length(), 255) : 0;
+                writeByte((byte) count);
+                for (int i = 0; i < count; i++) {
+                    writeByte((byte) digits.charAt(i));
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    private int intern(@Nullable String callUUID) {
+        if (callUUID == null) {
+            return 0;
+        }
+        Integer callId = callIds.get(callUUID);
+        if (callId != null && (acknowledgedCalls.contains(callUUID) || definedCalls.contains(callUUID))) {
+            return callId;
+        }
+
+        int id = callId != null ? callId : nextCallId++;
+        callIds.put(callUUID, id);
+        definedCalls.add(callUUID);
+        writeByte(TAG_DEFINE_CALL);
+        writeVarint(id);
+
+        UUID uuid = parseUUID(callUUID);
+        if (uuid != null) {
+            writeByte(KIND_UUID);
+            writeLong(uuid.getMostSignificantBits());
+            writeLong(uuid.getLeastSignificantBits());
+        } else {
+            writeByte(KIND_STRING);
+            writeString(callUUID);
+        }
+        return id;
+    }
+
+    @Nullable
+    private static UUID parseUUID(String value) {
+        if (value.length() != 36) {
+            return null;
+        }
+        try {
+            UUID uuid = UUID.fromString(value);
+            // Only use the compact form when Dart can rebuild the exact same string.
+            return uuid.toString().equals(value) ? uuid : null;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private void ensureCapacity(int extra) {
+        if (position + extra <= scratch.length) {
+            return;
+        }
+        byte[] grown = new byte[Math.max(scratch.length * 2, position + extra)];
+        System.arraycopy(scratch, 0, grown, 0, position);
+        scratch = grown;
+    }
+
+    private void writeByte(byte value) {
+        ensureCapacity(1);
+        scratch[position++] = value;
+    }
+
+    private void writeVarint(int value) {
+        ensureCapacity(5);
+        while ((value & ~0x7F) != 0) {
+            scratch[position++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        scratch[position++] = (byte) value;
+    }
+
+    private void writeLong(long value) {
+        ensureCapacity(8);
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            scratch[position++] = (byte) (value >>> shift);
+        }
+    }
+
+    private void writeString(@Nullable String value) {
+        if (value == null) {
+            writeVarint(0);
+            return;
+        }
+        byte[] bytes = value.getBytes(UTF_8);
+        writeVarint(bytes.length + 1);
+        ensureCapacity(bytes.length);
+        System.arraycopy(bytes, 0, scratch, position, bytes.length);
+        position += bytes.length;
+    }
+}
@@ -0,0 +1,243 @@
+/*
+ * Copyright (c) 2016-2019 The CallKeep Authors (see the AUTHORS file)
+ * SPDX-License-Identifier: ISC, MIT
+ *
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package io.wazo.callkeep;
+
+import android.content.Context;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Bounded append-only journal of the call events raised while no Flutter engine listens.
+ *
+ * The journal lives in a memory-mapped file so events survive the process being killed
+ * again before Dart comes up. Each record carries a sequence number; records stay in the
+ * journal until Dart acknowledges them, at which point the file is compacted.
+ *
+ * <pre>
+ * header  int magic, int version, int nextSequence, int ackedSequence, int end
+ * record  int length, int sequence, string action, callUUID, number, callerName, digits
+ * </pre>
+ *
+ * Strings are a short UTF-8 length, -1 standing for null. Longer strings are truncated.
+ */
+public class CallEventJournal {
+    private static final String TAG = "RNCK:CallEventJournal";
+    private static final String FILE_NAME = "callkeep-events.journal";
+    private static final int MAGIC = 0x434b4a31;
+    private static final int VERSION = 1;
+    private static final int CAPACITY = 64 * 1024;
+
+    private static final int OFFSET_NEXT_SEQUENCE = 8;
+    private static final int OFFSET_ACKED_SEQUENCE = 12;
+    private static final int OFFSET_END = 16;
+    private static final int HEADER_SIZE = 20;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static CallEventJournal instance;
+
+    private final MappedByteBuffer buffer;
+
+    public static final class Entry {
+        public final int sequence;
+        public final CallEvent event;
+
+        Entry(int sequence, CallEvent event) {
+            this.sequence = sequence;
+            this.event = event;
+        }
+    }
+
+    @Nullable
+    public static synchronized CallEventJournal getInstance(Context context) {
+        if (instance == null) {
+            try {
+                instance = new CallEventJournal(new File(context.getApplicationContext().getFilesDir(), FILE_NAME));
+            } catch (IOException e) {
+                Log.w(TAG, "Unable to open the event journal", e);
+            }
+        }
+        return instance;
+    }
+
+    CallEventJournal(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, CAPACITY);
+        } finally {
+            // The mapping stays valid once the file is closed.
+            raf.close();
+        }
+
+        if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, VERSION);
+            buffer.putInt(OFFSET_NEXT_SEQUENCE, 1);
+            buffer.putInt(OFFSET_ACKED_SEQUENCE, 0);
+            buffer.putInt(OFFSET_END, HEADER_SIZE);
+        }
+    }
+
+    /**
+     * @return the sequence number given to the event, or -1 if it could not be recorded.
+     */
+    public synchronized int append(CallEvent event) {
+        byte[][] fields = {
+                encode(event.action), encode(event.callUUID), encode(event.number),
+                encode(event.callerName), encode(event.digits)
+        };
+        int length = 8;
+        for (byte[] field : fields) {
+            length += 2 + (field != null ? field.length : 0);
+        }
+        if (length > CAPACITY - HEADER_SIZE) {
+            Log.w(TAG, "Event too large for the journal: " + event);
+            return -1;
+        }
+
+        if (buffer.getInt(OFFSET_END) + length > CAPACITY) {
+            compact();
+        }
+        while (buffer.getInt(OFFSET_END) + length > CAPACITY) {
+            Log.w(TAG, "Journal full, dropping the oldest event");
+            dropOldest();
+        }
+
+        int sequence = buffer.getInt(OFFSET_NEXT_SEQUENCE);
+        int position = buffer.getInt(OFFSET_END);
+        buffer.position(position);
+        buffer.putInt(length);
+        buffer.putInt(sequence);
+        for (byte[] field : fields) {
+            if (field == null) {
+                buffer.putShort((short) -1);
+            } else {
+                buffer.putShort((short) field.length);
+                buffer.put(field);
+            }
+        }
+        buffer.putInt(OFFSET_END, position + length);
+        buffer.putInt(OFFSET_NEXT_SEQUENCE, sequence + 1);
+        return sequence;
+    }
+
+    /**
+     * @return the events not acknowledged yet, in the order they were recorded.
+     */
+    public synchronized List<Entry> pending() {
+        List<Entry> entries = new ArrayList<>();
+        int acked = buffer.getInt(OFFSET_ACKED_SEQUENCE);
+        int end = buffer.getInt(OFFSET_END);
+        int position = HEADER_SIZE;
+        while (position < end) {
+            int length = buffer.getInt(position);
+            int sequence = buffer.getInt(position + 4);
+            if (sequence > acked) {
+                buffer.position(position + 8);
+                CallEvent event = new CallEvent(decode(), decode(), decode(), decode(), decode());
+                entries.add(new Entry(sequence, event));
+            }
+            position += length;
+        }
+        return entries;
+    }
+
+    public synchronized boolean isEmpty() {
+        return buffer.getInt(OFFSET_END) == HEADER_SIZE;
+    }
+
+    /**
+     * Acknowledges every event up to and including the given sequence number.
+     */
+    public synchronized void acknowledge(int sequence) {
+        if (sequence <= buffer.getInt(OFFSET_ACKED_SEQUENCE)) {
+            return;
+        }
+        buffer.putInt(OFFSET_ACKED_SEQUENCE, Math.min(sequence, buffer.getInt(OFFSET_NEXT_SEQUENCE) - 1));
+        compact();
+    }
+
+    private void compact() {
+        int acked = buffer.getInt(OFFSET_ACKED_SEQUENCE);
+        int end = buffer.getInt(OFFSET_END);
+        int position = HEADER_SIZE;
+        while (position < end && buffer.getInt(position + 4) <= acked) {
+            position += buffer.getInt(position);
+        }
+        shift(position, end);
+    }
+
+    private void dropOldest() {
+        int end = buffer.getInt(OFFSET_END);
+        int first = buffer.getInt(HEADER_SIZE + 4);
+        if (first > buffer.getInt(OFFSET_ACKED_SEQUENCE)) {
+            buffer.putInt(OFFSET_ACKED_SEQUENCE, first);
+        }
+        shift(HEADER_SIZE + buffer.getInt(HEADER_SIZE), end);
+    }
+
+    private void shift(int from, int end) {
+        if (from == HEADER_SIZE) {
+            return;
+        }
+        int remaining = end - from;
+        for (int i = 0; i < remaining; i++) {
+            buffer.put(HEADER_SIZE + i, buffer.get(from + i));
+        }
+        buffer.putInt(OFFSET_END, HEADER_SIZE + remaining);
+    }
+
+    @Nullable
+    private static byte[] encode(@Nullable String value) {
+        if (value == null) {
+            return null;
+        }
+        byte[] bytes = value.getBytes(UTF_8);
+        if (bytes.length <= Short.MAX_VALUE) {
+            return bytes;
+        }
+        // Cut before a UTF-8 continuation byte, so the last character stays whole
+        int length = Short.MAX_VALUE;
+        while (length > 0 && (bytes[length] & 0xC0) == 0x80) {
+            length--;
+        }
+        Log.w(TAG, "Truncating a " + bytes.length + " bytes event field to " + length + " bytes");
+        return Arrays.copyOf(bytes, length);
+    }
+
+    @Nullable
+    private String decode() {
+        short length = buffer.getShort();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, UTF_8);
+    }
+}
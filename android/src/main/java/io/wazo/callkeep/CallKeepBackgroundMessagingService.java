@@ -17,47 +17,62 @@
 
 package io.wazo.callkeep;
 
-import android.annotation.SuppressLint;
 import android.app.Service;
 import android.content.Context;
 import android.content.Intent;
 import android.os.IBinder;
-import android.os.PowerManager;
 import android.util.Log;
 
 import androidx.annotation.Nullable;
 
 public class CallKeepBackgroundMessagingService extends Service {
   private static final String TAG = "FLT:CallKeepService";
-  private static @Nullable PowerManager.WakeLock sWakeLock;
+  // Lease of the callers that do not tell which call they wake the app for
+  private static final String UNKNOWN_CALL = "unknown";
+
   /**
    * Acquire a wake lock to ensure the device doesn't go to sleep while processing background tasks.
+   *
+   * @deprecated use {@link #acquireWakeLock(Context, String)}, whose lease ends with the call.
    */
-  @SuppressLint("WakelockTimeout")
+  @Deprecated
   public static void acquireWakeLockNow(Context context) {
-    if (sWakeLock == null || !sWakeLock.isHeld()) {
-      PowerManager powerManager = (PowerManager) context.getSystemService(POWER_SERVICE);
-      sWakeLock =
-              powerManager.newWakeLock(
-                      PowerManager.PARTIAL_WAKE_LOCK, CallKeepBackgroundMessagingService.class.getCanonicalName());
-      sWakeLock.setReferenceCounted(false);
-      sWakeLock.acquire();
+    acquireWakeLock(context, UNKNOWN_CALL);
+  }
+
+  /**
+   * Keeps the device awake while the app handles the call, until the call ends or the
+   * wakeLockTimeout setting elapses.
+   */
+  public static void acquireWakeLock(Context context, @Nullable String uuid) {
+    VoiceConnectionService.wakeLocks.acquire(context, uuid != null ? uuid : UNKNOWN_CALL,
+            VoiceConnectionService.getConfig(context).wakeLockTimeoutMs);
+  }
+
+  @Override
+  public void onCreate() {
+    super.onCreate();
+    BackgroundEngine.prewarm(this);
+  }
+
+  @Override
+  public int onStartCommand(Intent intent, int flags, int startId) {
+    if (intent != null) {
+      Log.d(TAG, "wakeUpApplication: " + intent.getStringExtra("callUUID") + ", number : " + intent.getStringExtra("handle") + ", displayName:" + intent.getStringExtra("name"));
+      BackgroundEngine.deliver(this, intent.getStringExtra("callUUID"), intent.getStringExtra("handle"), intent.getStringExtra("name"));
     }
+    return START_NOT_STICKY;
   }
 
   @Nullable
   @Override
   public IBinder onBind(Intent intent) {
-    Log.d(TAG, "wakeUpApplication: " + intent.getStringExtra("callUUID") + ", number : " + intent.getStringExtra("handle") + ", displayName:" + intent.getStringExtra("name"));
-    //TODO: not implemented
     return null;
   }
 
   @Override
   public void onDestroy() {
     super.onDestroy();
-    if (sWakeLock != null) {
-      sWakeLock.release();
-    }
+    VoiceConnectionService.wakeLocks.releaseAll();
   }
 }
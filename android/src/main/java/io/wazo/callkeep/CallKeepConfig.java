@@ -0,0 +1,200 @@
+/*
+ * Copyright (c) 2016-2019 The CallKeep Authors (see the AUTHORS file)
+ * SPDX-License-Identifier: ISC, MIT
+ *
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package io.wazo.callkeep;
+
+import android.content.Context;
+import android.content.res.Resources;
+
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import io.wazo.callkeep.utils.ConstraintsArray;
+import io.wazo.callkeep.utils.ConstraintsMap;
+import io.wazo.callkeep.utils.ObjectType;
+
+/**
+ * Android settings given to setup(), compiled once into final fields.
+ *
+ * Resource names are resolved to ids when the config is compiled, and invalid settings are
+ * rejected there with an {@link IllegalArgumentException} instead of failing later in the
+ * service. Instances are immutable and can be read from any thread.
+ */
+public final class CallKeepConfig {
+    static final String E_INVALID_CONFIG = "E_INVALID_CONFIG";
+
+    static final int DEFAULT_REACHABILITY_TIMEOUT_MIN_MS = 250;
+    static final int DEFAULT_REACHABILITY_TIMEOUT_MAX_MS = 5000;
+    static final int DEFAULT_WAKE_LOCK_TIMEOUT_MS = 60000;
+
+    public static final CallKeepConfig EMPTY = new CallKeepConfig();
+
+    /* Settings of the notification shown while the service runs in the foreground */
+    public static final class ForegroundService {
+        public final String channelId;
+        public final String channelName;
+        @Nullable
+        public final String notificationTitle;
+        // 0 when no icon is configured
+        public final int smallIconResId;
+
+        private ForegroundService(String channelId, String channelName, @Nullable String notificationTitle, int smallIconResId) {
+            this.channelId = channelId;
+            this.channelName = channelName;
+            this.notificationTitle = notificationTitle;
+            this.smallIconResId = smallIconResId;
+        }
+    }
+
+    /** A frozen copy of the settings this config was compiled from. */
+    public final ConstraintsMap settings;
+    public final boolean selfManaged;
+    // 0 when no image is configured
+    public final int imageResId;
+    public final boolean legacyBroadcastEvents;
+    public final boolean binaryEvents;
+    public final boolean asyncTelecom;
+    public final boolean prewarm;
+    // Bounds of the adaptive wait for setReachable() before waking the app
+    public final int reachabilityTimeoutMinMs;
+    public final int reachabilityTimeoutMaxMs;
+    // How long a call may ring or dial before it ends, 0 for no limit
+    public final int ringTimeoutMs;
+    public final int dialTimeoutMs;
+    // Longest a call keeps the device awake for the app to handle it
+    public final int wakeLockTimeoutMs;
+    // null to keep the default coalesced events
+    @Nullable
+    public final List<String> coalesceEvents;
+    @Nullable
+    public final ForegroundService foregroundService;
+
+    private CallKeepConfig() {
+        settings = new ConstraintsMap().freeze();
+        selfManaged = false;
+        imageResId = 0;
+        legacyBroadcastEvents = false;
+        binaryEvents = true;
+        asyncTelecom = true;
+        prewarm = false;
+        reachabilityTimeoutMinMs = DEFAULT_REACHABILITY_TIMEOUT_MIN_MS;
+        reachabilityTimeoutMaxMs = DEFAULT_REACHABILITY_TIMEOUT_MAX_MS;
+        ringTimeoutMs = 0;
+        dialTimeoutMs = 0;
+        wakeLockTimeoutMs = DEFAULT_WAKE_LOCK_TIMEOUT_MS;
+        coalesceEvents = null;
+        foregroundService = null;
+    }
+
+    private CallKeepConfig(Context context, ConstraintsMap source) {
+        // A frozen copy, the caller keeps its map and may still change it
+        ConstraintsMap options = source.copy().freeze();
+        settings = options;
+        selfManaged = options.getBoolean("selfManaged", false);
+        legacyBroadcastEvents = options.getBoolean("legacyBroadcastEvents", false);
+        binaryEvents = options.getBoolean("binaryEvents", true);
+        asyncTelecom = options.getBoolean("asyncTelecom", true);
+        prewarm = options.getBoolean("prewarm", false);
+        reachabilityTimeoutMinMs = options.getInt("reachabilityTimeoutMin", DEFAULT_REACHABILITY_TIMEOUT_MIN_MS);
+        reachabilityTimeoutMaxMs = options.getInt("reachabilityTimeoutMax", DEFAULT_REACHABILITY_TIMEOUT_MAX_MS);
+        if (reachabilityTimeoutMinMs <= 0 || reachabilityTimeoutMaxMs < reachabilityTimeoutMinMs) {
+            throw new IllegalArgumentException("reachabilityTimeoutMin must be positive and not above reachabilityTimeoutMax, got "
+                    + reachabilityTimeoutMinMs + " and " + reachabilityTimeoutMaxMs);
+        }
+        ringTimeoutMs = options.getInt("ringTimeout", 0);
+        dialTimeoutMs = options.getInt("dialTimeout", 0);
+        if (ringTimeoutMs < 0 || dialTimeoutMs < 0) {
+            throw new IllegalArgumentException("ringTimeout and dialTimeout can not be negative");
+        }
+        wakeLockTimeoutMs = options.getInt("wakeLockTimeout", DEFAULT_WAKE_LOCK_TIMEOUT_MS);
+        if (wakeLockTimeoutMs <= 0) {
+            throw new IllegalArgumentException("wakeLockTimeout must be positive, got " + wakeLockTimeoutMs);
+        }
+
+        String imageName = options.getString("imageName", null);
+        imageResId = imageName != null ? resolve(context, "imageName", imageName, "drawable") : 0;
+
+        if (options.getType("coalesceEvents") == ObjectType.Array) {
+            ConstraintsArray events = options.getArray("coalesceEvents");
+            List<String> names = new ArrayList<>(events.size());
+            for (int i = 0; i < events.size(); i++) {
+                String name = events.getString(i, null);
+                if (name == null) {
+                    throw new IllegalArgumentException("coalesceEvents must only contain event names");
+                }
+                names.add(name);
+            }
+            coalesceEvents = Collections.unmodifiableList(names);
+        } else {
+            coalesceEvents = null;
+        }
+
+        ConstraintsMap service = options.getType("foregroundService") == ObjectType.Map ? options.getMap("foregroundService") : null;
+        foregroundService = service != null ? compileForegroundService(context, service) : null;
+    }
+
+    /**
+     * @throws IllegalArgumentException when a setting is missing or invalid.
+     */
+    public static CallKeepConfig compile(Context context, ConstraintsMap options) {
+        return new CallKeepConfig(context, options);
+    }
+
+    /**
+     * @return a config with the given settings replacing those of this one.
+     * @throws IllegalArgumentException when a setting is missing or invalid.
+     */
+    public CallKeepConfig withSettings(Context context, ConstraintsMap overrides) {
+        ConstraintsMap merged = settings.copy();
+        merged.merge(overrides.toMap());
+        return compile(context, merged);
+    }
+
+    private static ForegroundService compileForegroundService(Context context, ConstraintsMap service) {
+        String channelId = service.getString("channelId", null);
+        String channelName = service.getString("channelName", null);
+        if (channelId == null || channelName == null) {
+            throw new IllegalArgumentException("foregroundService requires a channelId and a channelName");
+        }
+
+        int smallIconResId = 0;
+        String icon = service.getString("notificationIcon", null);
+        if (icon != null) {
+            if (icon.startsWith("mipmap/")) {
+                smallIconResId = resolve(context, "notificationIcon", icon.substring("mipmap/".length()), "mipmap");
+            } else if (icon.startsWith("drawable/")) {
+                smallIconResId = resolve(context, "notificationIcon", icon.substring("drawable/".length()), "drawable");
+            } else {
+                throw new IllegalArgumentException("notificationIcon must start with mipmap/ or drawable/, got " + icon);
+            }
+        }
+
+        return new ForegroundService(channelId, channelName, service.getString("notificationTitle", null), smallIconResId);
+    }
+
+    private static int resolve(Context context, String key, String name, String type) {
+        Resources res = context.getResources();
+        int id = res.getIdentifier(name, type, context.getPackageName());
+        if (id == 0) {
+            throw new IllegalArgumentException(key + ": no " + type + " resource named " + name);
+        }
+        return id;
+    }
+}
@@ -27,8 +27,6 @@ import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
-import android.content.SharedPreferences;
-import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageManager;
 import android.graphics.drawable.Icon;
 import android.net.Uri;
@@ -48,31 +46,52 @@ import androidx.annotation.Nullable;
 import androidx.annotation.RequiresApi;
 import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
+import io.flutter.plugin.common.BasicMessageChannel;
+import io.flutter.plugin.common.BinaryCodec;
 import io.flutter.plugin.common.BinaryMessenger;
 import io.flutter.plugin.common.MethodChannel;
 import io.flutter.plugin.common.MethodCall;
 import io.flutter.plugin.common.MethodChannel.Result;
 import io.wazo.callkeep.notification.CallNotificationService;
+import io.wazo.callkeep.notification.CallRingtone;
+import io.wazo.callkeep.notification.IncomingCallNotifications;
 import io.wazo.callkeep.utils.Callback;
 import io.wazo.callkeep.utils.ConstraintsMap;
 import io.wazo.callkeep.utils.ConstraintsArray;
+import io.wazo.callkeep.utils.LatencyHistogram;
+import io.wazo.callkeep.utils.ObjectType;
 import io.wazo.callkeep.utils.PermissionUtils;
 
 import static io.wazo.callkeep.Constants.*;
-import static io.wazo.callkeep.VoiceConnectionService.setSettings;
 
-import com.google.gson.Gson;
 
 // @see https://github.com/kbagchiGWC/voice-quickstart-android/blob/9a2aff7fbe0d0a5ae9457b48e9ad408740dfb968/exampleConnectionService/src/main/java/com/twilio/voice/examples/connectionservice/VoiceConnectionServiceActivity.java
 public class CallKeepModule {
     private static final String E_ACTIVITY_DOES_NOT_EXIST = "E_ACTIVITY_DOES_NOT_EXIST";
+    private static final String E_INVALID_BATCH = "E_INVALID_BATCH";
+    private static final String E_BATCH_COMMAND_FAILED = "E_BATCH_COMMAND_FAILED";
+    // Commands acting on a single call that can be grouped by the batch method
+    private static final Set<String> BATCH_METHODS = new HashSet<>(Arrays.asList(
+            "answerIncomingCall",
+            "endCall",
+            "rejectCall",
+            "reportEndCallWithUUID",
+            "sendDTMF",
+            "setCurrentCallActive",
+            "setMutedCall",
+            "setOnHold",
+            "updateDisplay"
+    ));
     private static String[] permissions = {
             Manifest.permission.READ_PHONE_STATE,
             Manifest.permission.CALL_PHONE,
@@ -82,182 +101,227 @@ public class CallKeepModule {
     };
 
     private static final String TAG = "FLT:CallKeepModule";
+    // Loaded and initialized by the prewarm pipeline rather than by the first call
+    private static final String[] PREWARMED_CLASSES = {
+            "io.wazo.callkeep.VoiceConnection",
+            "io.wazo.callkeep.CallEvent",
+            "io.wazo.callkeep.notification.CallNotificationService",
+            "io.wazo.callkeep.notification.CallHandler",
+            "io.wazo.callkeep.notification.IncomingCallNotifications",
+            "io.wazo.callkeep.notification.NotificationBitmaps",
+    };
     private static TelecomManager telecomManager;
     private static TelephonyManager telephonyManager;
     private Context _context;
     public static PhoneAccountHandle handle;
     private boolean isReceiverRegistered = false;
     private VoiceBroadcastReceiver voiceBroadcastReceiver;
-    private ConstraintsMap _settings;
+    private final CallEventBus.Listener callEventListener = this::onCallEvent;
     Activity _currentActivity = null;
     MethodChannel _eventChannel;
+    BasicMessageChannel<ByteBuffer> _binaryEventChannel;
+    private final CallEventBatcher eventBatcher;
+    private final CallEventCodec eventCodec = new CallEventCodec();
+    private boolean binaryEvents = true;
+    private final TelecomExecutor telecomExecutor = new TelecomExecutor();
+    // Replaced at each setup() with prewarm enabled
+    private Prewarmer prewarmer = new Prewarmer();
+    // Filled once in the constructor, read-only afterwards
+    private final HashMap<String, MethodHandler> handlers = new HashMap<>();
+    private final HashMap<String, LatencyHistogram> latencies = new HashMap<>();
 
     public CallKeepModule(Context context, BinaryMessenger messenger) {
         this._context = context;
         this._eventChannel = new MethodChannel(messenger, "FlutterCallKeep.Event");
+        this._binaryEventChannel = new BasicMessageChannel<>(messenger, "FlutterCallKeep.EventBinary", BinaryCodec.INSTANCE);
+        this.eventBatcher = new CallEventBatcher(new FlutterEventSink());
+        registerHandlers();
+        AppVisibilityTracker.install(context);
     }
 
     private boolean isSelfManaged() {
-        try {
-            return Build.VERSION.SDK_INT >= Build.VERSION_CODES.O && _settings.hasKey("selfManaged") && _settings.getBoolean("selfManaged");
-        } catch (Exception e) {
-            return false;
-        }
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.O && VoiceConnectionService.getConfig().selfManaged;
     }
 
     public void setActivity(Activity activity) {
         this._currentActivity = activity;
+        AppVisibilityTracker.onActivityAttached(activity);
     }
 
     public void dispose() {
+        telecomExecutor.shutdown();
         if (voiceBroadcastReceiver == null || this._context == null) return;
+        CallEventBus.removeListener(callEventListener);
+        eventBatcher.clear();
         LocalBroadcastManager.getInstance(this._context).unregisterReceiver(voiceBroadcastReceiver);
         VoiceConnectionService.setPhoneAccountHandle(null);
         isReceiverRegistered = false;
     }
 
-    public boolean handleMethodCall(@NonNull MethodCall call, @NonNull Result result) {
-        switch (call.method) {
-            case "setup": {
-                Log.i(TAG, "setup: called");
-                setup(new ConstraintsMap((Map<String, Object>) call.argument("options")));
-                result.success(null);
-            }
-            break;
-            case "displayIncomingCall": {
-                Log.i(TAG, "displayIncomingCall: called");
-                displayIncomingCall((String) call.argument("uuid"), (String) call.argument("handle"), (String) call.argument("localizedCallerName"));
-                result.success(null);
-            }
-            break;
-            case "answerIncomingCall": {
-                Log.i(TAG, "answerIncomingCall: called");
-                answerIncomingCall((String) call.argument("uuid"));
-                result.success(null);
-            }
-            break;
-            case "startCall": {
-                Log.i(TAG, "startCall: called");
-                startCall((String) call.argument("uuid"), (String) call.argument("number"), (String) call.argument("callerName"));
-                result.success(null);
-            }
-            break;
-            case "endCall": {
-                Log.i(TAG, "endCall: called");
-                endCall((String) call.argument("uuid"));
-                result.success(null);
-            }
-            break;
-            case "endAllCalls": {
-                Log.i(TAG, "endAllCalls: called");
-                endAllCalls();
-                result.success(null);
-            }
-            break;
-            case "checkPhoneAccountPermission": {
-                Log.i(TAG, "checkPhoneAccountPermission: called");
-                checkPhoneAccountPermission(new ConstraintsArray((ArrayList<Object>) call.argument("optionalPermissions")), result);
-            }
-            break;
-            case "checkDefaultPhoneAccount": {
-                Log.i(TAG, "checkDefaultPhoneAccount: called");
-                checkDefaultPhoneAccount(result);
-            }
-            break;
-            case "setOnHold": {
-                Log.i(TAG, "setOnHold: called");
-                setOnHold((String) call.argument("uuid"), (Boolean) call.argument("hold"));
-                result.success(null);
-            }
-            break;
-            case "reportEndCallWithUUID": {
-                Log.i(TAG, "reportEndCallWithUUID: called");
-                reportEndCallWithUUID((String) call.argument("uuid"), (int) call.argument("reason"));
-                result.success(null);
+    private void registerHandlers() {
+        handlers.put("setup", (call, result) -> {
+            CallKeepConfig config;
+            try {
+                config = CallKeepConfig.compile(getAppContext(), new ConstraintsMap((Map<String, Object>) call.argument("options")));
+            } catch (IllegalArgumentException e) {
+                result.error(CallKeepConfig.E_INVALID_CONFIG, e.getMessage(), null);
+                return;
             }
-            break;
-            case "rejectCall": {
-                Log.i(TAG, "rejectCall: called");
-                rejectCall((String) call.argument("uuid"), _context);
-                result.success(null);
-            }
-            break;
-            case "setMutedCall": {
-                Log.i(TAG, "setMutedCall: called");
-                setMutedCall((String) call.argument("uuid"), (Boolean) call.argument("muted"));
-                result.success(null);
-            }
-            break;
-            case "sendDTMF": {
-                Log.i(TAG, "sendDTMF: called");
-                sendDTMF((String) call.argument("uuid"), (String) call.argument("key"));
-                result.success(null);
-            }
-            break;
-            case "updateDisplay": {
-                Log.i(TAG, "updateDisplay: called");
-                updateDisplay((String) call.argument("uuid"), (String) call.argument("displayName"), (String) call.argument("handle"));
-                result.success(null);
-            }
-            break;
-            case "hasPhoneAccount": {
-                Log.i(TAG, "hasPhoneAccount: called");
-                hasPhoneAccount(result);
-            }
-            break;
-            case "hasOutgoingCall": {
-                Log.i(TAG, "hasOutgoingCall: called");
-                hasOutgoingCall(result);
-            }
-            break;
-            case "setAvailable": {
-                Log.i(TAG, "setAvailable: called");
-                setAvailable((Boolean) call.argument("available"));
-                result.success(null);
-            }
-            break;
-            case "setReachable": {
-                Log.i(TAG, "setReachable called");
-                setReachable();
-                result.success(null);
-            }
-            break;
-            case "setCurrentCallActive": {
-                Log.i(TAG, "setCurrentCallActive called");
-                setCurrentCallActive((String) call.argument("uuid"));
-                result.success(null);
-            }
-            break;
-            case "openPhoneAccounts": {
-                Log.i(TAG, "openPhoneAccounts called");
-                openPhoneAccounts(result);
-            }
-            break;
-            case "backToForeground": {
-                Log.i(TAG, "backToForeground called");
-                backToForeground(result);
-            }
-            break;
-            case "foregroundService": {
-                Log.i(TAG, "foregroundService called");
-                setSettings(new ConstraintsMap((Map<String, Object>) call.argument("settings")));
-                result.success(null);
+            // Completed once the phone account is registered
+            setup(config, result);
+        });
+        handlers.put("displayIncomingCall", (call, result) -> {
+            displayIncomingCall((String) call.argument("uuid"), (String) call.argument("handle"), (String) call.argument("localizedCallerName"), (String) call.argument("avatar"), result);
+        });
+        handlers.put("answerIncomingCall", (call, result) -> {
+            answerIncomingCall((String) call.argument("uuid"));
+            result.success(null);
+        });
+        handlers.put("startCall", (call, result) -> {
+            startCall((String) call.argument("uuid"), (String) call.argument("number"), (String) call.argument("callerName"), result);
+        });
+        handlers.put("endCall", (call, result) -> {
+            endCall((String) call.argument("uuid"));
+            result.success(null);
+        });
+        handlers.put("endAllCalls", (call, result) -> {
+            endAllCalls();
+            result.success(null);
+        });
+        handlers.put("checkPhoneAccountPermission", (call, result) -> {
+            checkPhoneAccountPermission(new ConstraintsArray((ArrayList<Object>) call.argument("optionalPermissions")), result);
+        });
+        handlers.put("checkDefaultPhoneAccount", (call, result) -> checkDefaultPhoneAccount(result));
+        handlers.put("setOnHold", (call, result) -> {
+            setOnHold((String) call.argument("uuid"), (Boolean) call.argument("hold"));
+            result.success(null);
+        });
+        handlers.put("reportEndCallWithUUID", (call, result) -> {
+            reportEndCallWithUUID((String) call.argument("uuid"), (int) call.argument("reason"));
+            result.success(null);
+        });
+        handlers.put("rejectCall", (call, result) -> {
+            rejectCall((String) call.argument("uuid"), _context);
+            result.success(null);
+        });
+        handlers.put("setMutedCall", (call, result) -> {
+            setMutedCall((String) call.argument("uuid"), (Boolean) call.argument("muted"));
+            result.success(null);
+        });
+        handlers.put("sendDTMF", (call, result) -> {
+            sendDTMF((String) call.argument("uuid"), (String) call.argument("key"));
+            result.success(null);
+        });
+        handlers.put("updateDisplay", (call, result) -> {
+            updateDisplay((String) call.argument("uuid"), (String) call.argument("displayName"), (String) call.argument("handle"));
+            result.success(null);
+        });
+        handlers.put("hasPhoneAccount", (call, result) -> hasPhoneAccount(result));
+        handlers.put("hasOutgoingCall", (call, result) -> hasOutgoingCall(result));
+        handlers.put("setAvailable", (call, result) -> {
+            setAvailable((Boolean) call.argument("available"));
+            result.success(null);
+        });
+        handlers.put("setReachable", (call, result) -> {
+            setReachable();
+            result.success(null);
+        });
+        handlers.put("setCurrentCallActive", (call, result) -> {
+            setCurrentCallActive((String) call.argument("uuid"));
+            result.success(null);
+        });
+        handlers.put("openPhoneAccounts", (call, result) -> openPhoneAccounts(result));
+        handlers.put("backToForeground", (call, result) -> backToForeground(result));
+        handlers.put("batch", (call, result) -> {
+            batch(new ConstraintsArray((ArrayList<Object>) call.argument("commands")), result);
+        });
+        handlers.put("ackEvents", (call, result) -> {
+            ackEvents((int) call.argument("sequence"));
+            result.success(null);
+        });
+        handlers.put("foregroundService", (call, result) -> {
+            try {
+                ConstraintsMap settings = new ConstraintsMap((Map<String, Object>) call.argument("settings"));
+                CallKeepConfig config = VoiceConnectionService.getConfig().withSettings(getAppContext(), settings);
+                VoiceConnectionService.setConfig(config);
+                storeSettings(config.settings);
+            } catch (IllegalArgumentException e) {
+                result.error(CallKeepConfig.E_INVALID_CONFIG, e.getMessage(), null);
+                return;
             }
-            break;
-            default:
-                return false;
+            result.success(null);
+        });
+        handlers.put("getMethodMetrics", (call, result) -> getMethodMetrics(result));
+        handlers.put("getForegroundServiceMetrics", (call, result) -> result.success(VoiceConnectionService.foregroundService.getMetrics().toMap()));
+        handlers.put("getReachabilityMetrics", (call, result) -> result.success(VoiceConnectionService.reachability.getMetrics().toMap()));
+        handlers.put("getWakeLockMetrics", (call, result) -> result.success(VoiceConnectionService.wakeLocks.getMetrics().toMap()));
+        handlers.put("registerBackgroundHandler", (call, result) -> {
+            BackgroundEngine.registerCallbacks(getAppContext(), ((Number) call.argument("dispatcherHandle")).longValue(),
+                    ((Number) call.argument("handlerHandle")).longValue());
+            result.success(null);
+        });
+        handlers.put("getRingtoneMetrics", (call, result) -> result.success(CallRingtone.getMetrics().toMap()));
+        handlers.put("getBackgroundEngineMetrics", (call, result) -> result.success(BackgroundEngine.getMetrics().toMap()));
+        handlers.put("getPrewarmReport", (call, result) -> result.success(prewarmer.getReport().toMap()));
+        handlers.put("resetMethodMetrics", (call, result) -> {
+            resetMethodMetrics();
+            result.success(null);
+        });
+        for (String method : handlers.keySet()) {
+            latencies.put(method, new LatencyHistogram());
+        }
+    }
+
+    public boolean handleMethodCall(@NonNull MethodCall call, @NonNull Result result) {
+        MethodHandler handler = handlers.get(call.method);
+        if (handler == null) {
+            return false;
         }
 
+        Log.d(TAG, call.method + ": called");
+        handler.handle(call, new TimedResult(result, latencies.get(call.method), System.nanoTime()));
         return true;
     }
 
+    /**
+     * @throws IllegalArgumentException when the options are invalid.
+     */
     public void setup(ConstraintsMap options) {
+        setup(CallKeepConfig.compile(getAppContext(), options));
+    }
+
+    /**
+     * A phone account registration failure is thrown when Telecom operations run synchronously,
+     * and sent to Dart as a CallKeepDidFailToRegisterPhoneAccount event otherwise.
+     */
+    public void setup(CallKeepConfig config) {
+        setup(config, null);
+    }
+
+    /**
+     * @param result completed once the phone account is registered, with an error if that failed.
+     */
+    public void setup(CallKeepConfig config, @Nullable Result result) {
+        // Dart forgets the interned call ids on every setup(), even a repeated one
+        eventCodec.reset();
         if (isReceiverRegistered) {
+            if (result != null) {
+                result.success(null);
+            }
             return;
         }
         VoiceConnectionService.setAvailable(false);
         VoiceConnectionService.setInitialized(true);
-        setSettings(options);
+        VoiceConnectionService.setConfig(config);
+        CallEventBus.setLegacyBroadcasts(config.legacyBroadcastEvents);
+        if (config.coalesceEvents != null) {
+            eventBatcher.setCoalescedEvents(config.coalesceEvents);
+        }
+        binaryEvents = config.binaryEvents;
+        telecomExecutor.setAsync(config.asyncTelecom);
+        if (!config.prewarm) {
+            CallRingtone.prewarm(getAppContext());
+        }
 
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
             if (isSelfManaged()) {
@@ -274,12 +338,40 @@ public class CallKeepModule {
         }
 
         if (isConnectionServiceAvailable()) {
-            this.registerPhoneAccount(options);
+            this.registerPhoneAccount(config.settings, result);
             this.registerEvents();
             VoiceConnectionService.setAvailable(true);
+        } else if (result != null) {
+            result.success(null);
         }
+        if (config.prewarm) {
+            prewarm(config);
+        }
+    }
 
-        setSettings(options);
+    private void prewarm(final CallKeepConfig config) {
+        final Context context = getAppContext();
+        final PhoneAccountHandle accountHandle = handle;
+        final Prewarmer pipeline = new Prewarmer();
+        pipeline.add("classes", false, () -> {
+            for (String name : PREWARMED_CLASSES) {
+                Class.forName(name, true, CallKeepModule.class.getClassLoader());
+            }
+        });
+        pipeline.add("phoneAccount", false, () -> {
+            if (telecomManager != null) {
+                VoiceConnectionService.phoneAccounts.getCapabilities(telecomManager, accountHandle);
+            }
+        });
+        pipeline.add("foregroundNotification", false, () -> VoiceConnectionService.foregroundService.prewarm(context, config.foregroundService));
+        pipeline.add("callNotifications", true, () -> IncomingCallNotifications.prewarm(context));
+        pipeline.add("ringtone", true, () -> CallRingtone.prewarm(context));
+        prewarmer = pipeline;
+        // Queued behind the phone account registration, so the lookup finds the account
+        telecomExecutor.execute(() -> {
+            pipeline.start();
+            return null;
+        });
     }
 
     public void registerEvents() {
@@ -294,30 +386,28 @@ public class CallKeepModule {
 
 
     public void displayIncomingCall(String uuid, String number, String callerName) {
+        displayIncomingCall(uuid, number, callerName, null, null);
+    }
+
+    public void displayIncomingCall(String uuid, String number, String callerName, @Nullable Result result) {
+        displayIncomingCall(uuid, number, callerName, null, result);
+    }
+
+    public void displayIncomingCall(String uuid, String number, String callerName, @Nullable String avatar, @Nullable Result result) {
         if (!isConnectionServiceAvailable() || !hasPhoneAccount()) {
+            if (result != null) {
+                result.success(null);
+            }
             return;
         }
 
         Log.d(TAG, "displayIncomingCall number: " + number + ", callerName: " + callerName);
 
-        Bundle extras = new Bundle();
-        Uri uri = Uri.fromParts(PhoneAccount.SCHEME_SIP, number, null);
-        extras.putParcelable(TelecomManager.EXTRA_INCOMING_CALL_ADDRESS, uri);
-        extras.putString(EXTRA_CALLER_NAME, callerName);
-        extras.putString(EXTRA_CALL_UUID, uuid);
-
-        if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.O) {
-            telecomManager.addNewIncomingCall(handle, extras);
-        } else {
-            telecomManager.addNewIncomingCall(null, extras);
-        }
-
-        Intent intent = new Intent(_context, CallNotificationService.class);
-        intent.putExtra("callerName", callerName);
-        intent.putExtra("number", number);
-        intent.putExtra("uuid", uuid);
-        _context.startService(intent);
-
+        final PhoneAccountHandle accountHandle = handle;
+        telecomExecutor.execute(() -> {
+            IncomingCallLauncher.addNewIncomingCall(_context, telecomManager, accountHandle, uuid, number, callerName, avatar);
+            return null;
+        }, result);
     }
 
     public static void answerIncomingCall(String uuid) {
@@ -328,12 +418,20 @@ public class CallKeepModule {
         if (conn == null) {
             return;
         }
+        VoiceConnectionService.cancelCallTimeout(uuid);
         conn.onAnswer();
     }
 
 
     public void startCall(String uuid, String number, String callerName) {
+        startCall(uuid, number, callerName, null);
+    }
+
+    public void startCall(String uuid, String number, String callerName, @Nullable Result result) {
         if (!isConnectionServiceAvailable() || !hasPhoneAccount() || number == null) {
+            if (result != null) {
+                result.success(null);
+            }
             return;
         }
 
@@ -348,7 +446,10 @@ public class CallKeepModule {
         extras.putParcelable(TelecomManager.EXTRA_PHONE_ACCOUNT_HANDLE, handle);
         extras.putParcelable(TelecomManager.EXTRA_OUTGOING_CALL_EXTRAS, callExtras);
 
-        telecomManager.placeCall(uri, extras);
+        telecomExecutor.execute(() -> {
+            telecomManager.placeCall(uri, extras);
+            return null;
+        }, result);
     }
 
 
@@ -374,9 +475,7 @@ public class CallKeepModule {
             return;
         }
 
-        Map<String, VoiceConnection> currentConnections = VoiceConnectionService.currentConnections;
-        for (Map.Entry<String, VoiceConnection> connectionEntry : currentConnections.entrySet()) {
-            Connection connectionToEnd = connectionEntry.getValue();
+        for (VoiceConnection connectionToEnd : VoiceConnectionService.callRegistry.snapshot()) {
             connectionToEnd.onDisconnect();
         }
 
@@ -415,10 +514,12 @@ public class CallKeepModule {
             return;
         }
 
-        boolean hasSim = telephonyManager.getSimState() != TelephonyManager.SIM_STATE_ABSENT;
-        boolean hasDefaultAccount = telecomManager.getDefaultOutgoingPhoneAccount("tel") != null;
+        telecomExecutor.execute(() -> {
+            boolean hasSim = telephonyManager.getSimState() != TelephonyManager.SIM_STATE_ABSENT;
+            boolean hasDefaultAccount = telecomManager.getDefaultOutgoingPhoneAccount("tel") != null;
 
-        result.success(!hasSim || hasDefaultAccount);
+            return !hasSim || hasDefaultAccount;
+        }, result);
     }
 
 
@@ -460,8 +561,7 @@ public class CallKeepModule {
             return;
         }
 
-        Intent intent1 = new Intent(context, CallNotificationService.class);
-        context.stopService(intent1);
+        CallNotificationService.dismiss(context, uuid);
 
         conn.onReject();
     }
@@ -502,8 +602,11 @@ public class CallKeepModule {
             return;
         }
 
-        conn.setAddress(Uri.parse(uri), TelecomManager.PRESENTATION_ALLOWED);
+        Uri address = Uri.parse(uri);
+        conn.setAddress(address, TelecomManager.PRESENTATION_ALLOWED);
         conn.setCallerDisplayName(displayName, TelecomManager.PRESENTATION_ALLOWED);
+        VoiceConnectionService.callRegistry.updateHandle(uuid, address.getSchemeSpecificPart());
+        IncomingCallNotifications.update(_context, uuid, displayName, address.getSchemeSpecificPart());
     }
 
 
@@ -531,12 +634,121 @@ public class CallKeepModule {
     }
 
 
+    /**
+     * Runs a list of call commands in one main thread pass, so no Telecom callback can
+     * interleave with them. Every command is validated first: if one of them is not batchable,
+     * targets an unknown call or has missing or mistyped arguments, none is run. A command that
+     * then fails while running is recorded as an error and the next ones still run: the
+     * commands already run are not rolled back.
+     */
+    public void batch(ConstraintsArray commands, @NonNull MethodChannel.Result result) {
+        List<MethodCall> calls = new ArrayList<>(commands.size());
+        for (int i = 0; i < commands.size(); i++) {
+            if (commands.getType(i) != ObjectType.Map) {
+                result.error(E_INVALID_BATCH, "Command " + i + " is not a map", null);
+                return;
+            }
+            ConstraintsMap command = commands.getMap(i);
+            String method = command.getString("method", null);
+            if (!BATCH_METHODS.contains(method)) {
+                result.error(E_INVALID_BATCH, "Command " + i + " (" + method + ") cannot be batched", null);
+                return;
+            }
+            Object arguments = command.toMap().get("arguments");
+            if (!(arguments instanceof Map)) {
+                result.error(E_INVALID_BATCH, "Command " + i + " (" + method + ") has no arguments", null);
+                return;
+            }
+            Map<String, Object> args = (Map<String, Object>) arguments;
+            String invalidArgument = findInvalidBatchArgument(method, args);
+            if (invalidArgument != null) {
+                result.error(E_INVALID_BATCH, "Command " + i + " (" + method + ") has an invalid " + invalidArgument, null);
+                return;
+            }
+            String uuid = (String) args.get("uuid");
+            if (VoiceConnectionService.getConnection(uuid) == null) {
+                result.error(E_INVALID_BATCH, "Command " + i + " (" + method + ") targets unknown call " + uuid, null);
+                return;
+            }
+            calls.add(new MethodCall(method, args));
+        }
+
+        ConstraintsArray results = new ConstraintsArray();
+        for (MethodCall call : calls) {
+            BatchResult commandResult = new BatchResult();
+            try {
+                handleMethodCall(call, commandResult);
+            } catch (RuntimeException e) {
+                Log.w(TAG, "[CallKeepModule][batch] " + call.method + " failed", e);
+                commandResult.error(E_BATCH_COMMAND_FAILED, e.getMessage(), null);
+            }
+            results.pushMap(commandResult.toConstraintsMap());
+        }
+        result.success(results.toArrayList());
+    }
+
+    /*
+     * Returns the name of the first missing or mistyped argument of a batched command
+     */
+    @Nullable
+    private static String findInvalidBatchArgument(String method, Map<String, Object> args) {
+        if (!(args.get("uuid") instanceof String)) {
+            return "uuid";
+        }
+        switch (method) {
+            case "setOnHold":
+                return args.get("hold") instanceof Boolean ? null : "hold";
+            case "setMutedCall":
+                return args.get("muted") instanceof Boolean ? null : "muted";
+            case "reportEndCallWithUUID":
+                return args.get("reason") instanceof Integer ? null : "reason";
+            case "sendDTMF":
+                Object key = args.get("key");
+                return key instanceof String && !((String) key).isEmpty() ? null : "key";
+            case "updateDisplay":
+                if (!(args.get("displayName") instanceof String)) {
+                    return "displayName";
+                }
+                return args.get("handle") instanceof String ? null : "handle";
+            default:
+                return null;
+        }
+    }
+
+
+    public void getMethodMetrics(@NonNull MethodChannel.Result result) {
+        ConstraintsMap metrics = new ConstraintsMap();
+        for (Map.Entry<String, LatencyHistogram> latency : latencies.entrySet()) {
+            if (latency.getValue().getCount() > 0) {
+                metrics.putMap(latency.getKey(), latency.getValue().toConstraintsMap().toMap());
+            }
+        }
+        result.success(metrics.toMap());
+    }
+
+
+    public void resetMethodMetrics() {
+        for (LatencyHistogram latency : latencies.values()) {
+            latency.reset();
+        }
+    }
+
+
+    public void ackEvents(int sequence) {
+        CallEventJournal journal = CallEventJournal.getInstance(_context);
+        if (journal != null) {
+            journal.acknowledge(sequence);
+        }
+    }
+
+
     public void setCurrentCallActive(String uuid) {
         Connection conn = VoiceConnectionService.getConnection(uuid);
         if (conn == null) {
             return;
         }
 
+        VoiceConnectionService.cancelCallTimeout(uuid);
         conn.setConnectionCapabilities(conn.getConnectionCapabilities() | Connection.CAPABILITY_HOLD);
         conn.setActive();
     }
@@ -597,20 +809,19 @@ public class CallKeepModule {
 
     private void initializeTelecomManager() {
         Context context = this.getAppContext();
-        ComponentName cName = new ComponentName(context, VoiceConnectionService.class);
-        String appName = this.getApplicationName(context);
-
-
-        handle = new PhoneAccountHandle(cName, appName);
+        handle = IncomingCallLauncher.getPhoneAccountHandle(context);
         telecomManager = (TelecomManager) context.getSystemService(Context.TELECOM_SERVICE);
     }
 
-    private void registerPhoneAccount(ConstraintsMap options) {
+    private void registerPhoneAccount(ConstraintsMap options, @Nullable Result result) {
 
         storeSettings(options);
 
         if (!isConnectionServiceAvailable()) {
             Log.w(TAG, "[RNCallKeepModule] registerPhoneAccount ignored due to no ConnectionService");
+            if (result != null) {
+                result.success(null);
+            }
             return;
         }
 
@@ -618,44 +829,56 @@ public class CallKeepModule {
         Context context = this.getAppContext();
         if (context == null) {
             Log.w(TAG, "[RNCallKeepModule][registerPhoneAccount] no react context found.");
+            if (result != null) {
+                result.success(null);
+            }
             return;
         }
 
-        this.registerPhoneAccount(context);
+        this.registerPhoneAccount(context, result);
     }
 
-    private void registerPhoneAccount(Context appContext) {
-        if (!isConnectionServiceAvailable()) {
-            return;
-        }
+    private void registerPhoneAccount(Context appContext, @Nullable Result result) {
 
         this.initializeTelecomManager();
-        String appName = this.getApplicationName(this.getAppContext());
+        String appName = IncomingCallLauncher.getApplicationName(this.getAppContext());
 
-        PhoneAccount.Builder builder = null;
-        if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.O) {
-            builder = new PhoneAccount.Builder(handle, appName)
-                    .setCapabilities(PhoneAccount.CAPABILITY_SELF_MANAGED);
-        } else {
-            builder = new PhoneAccount.Builder(handle, appName)
-                    .setCapabilities(PhoneAccount.CAPABILITY_CALL_PROVIDER);
+        final int capabilities = android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.O
+                ? PhoneAccount.CAPABILITY_SELF_MANAGED
+                : PhoneAccount.CAPABILITY_CALL_PROVIDER;
+        final int imageResId = VoiceConnectionService.getConfig().imageResId;
+
+        telephonyManager = (TelephonyManager) this.getAppContext().getSystemService(Context.TELEPHONY_SERVICE);
+
+        final PhoneAccountHandle accountHandle = handle;
+        if (!VoiceConnectionService.phoneAccounts.needsRegistration(appContext, accountHandle, appName, capabilities, imageResId)) {
+            Log.d(TAG, "[RNCallKeepModule] registerPhoneAccount: account unchanged, skipping");
+            if (result != null) {
+                result.success(null);
+            }
+            return;
         }
 
-        if (_settings != null && _settings.hasKey("imageName")) {
-            int identifier = appContext.getResources().getIdentifier(_settings.getString("imageName"), "drawable", appContext.getPackageName());
-            Icon icon = Icon.createWithResource(appContext, identifier);
+        PhoneAccount.Builder builder = new PhoneAccount.Builder(accountHandle, appName)
+                .setCapabilities(capabilities);
+        if (imageResId != 0) {
+            Icon icon = Icon.createWithResource(appContext, imageResId);
             builder.setIcon(icon);
         }
 
-        PhoneAccount account = builder.build();
+        final PhoneAccount account = builder.build();
 
-        telephonyManager = (TelephonyManager) this.getAppContext().getSystemService(Context.TELEPHONY_SERVICE);
-
-        telecomManager.registerPhoneAccount(account);
+        // Without a result a failure is thrown when running inline, or reported as an event
+        Result registration = result != null || !telecomExecutor.isAsync() ? result : new PhoneAccountErrorResult();
+        telecomExecutor.execute(() -> {
+            telecomManager.registerPhoneAccount(account);
+            VoiceConnectionService.phoneAccounts.onRegistered(appContext, accountHandle, appName, capabilities, imageResId);
+            return null;
+        }, registration);
     }
 
 
-    // Store all callkeep settings in JSON
+    // Persist the settings so a cold-started service finds them
     private void storeSettings(ConstraintsMap options) {
         Context context = getAppContext();
         if (context == null) {
@@ -663,25 +886,11 @@ public class CallKeepModule {
             return;
         }
 
-        SharedPreferences sharedPref = context.getSharedPreferences("rn-callkeep", Context.MODE_PRIVATE);
-        try {
-            Gson gson = new Gson();
-            String jsonString = gson.toJson(options);
-            sharedPref.edit().putString("settings", jsonString).apply();
-        } catch (Exception e) {
-
-        }
+        SettingsSnapshot.write(context, options);
     }
 
     private void sendEventToFlutter(String eventName, @Nullable ConstraintsMap params) {
-        _eventChannel.invokeMethod(eventName, params.toMap());
-    }
-
-    private String getApplicationName(Context appContext) {
-        ApplicationInfo applicationInfo = appContext.getApplicationInfo();
-        int stringId = applicationInfo.labelRes;
-
-        return stringId == 0 ? applicationInfo.nonLocalizedLabel.toString() : appContext.getString(stringId);
+        eventBatcher.add(eventName, params != null ? params : new ConstraintsMap());
     }
 
 
@@ -691,6 +900,14 @@ public class CallKeepModule {
 
     private void registerReceiver() {
         if (!isReceiverRegistered) {
+            CallEventBus.addListener(callEventListener);
+            replayJournal();
+            announceNativeCalls();
+            if (!CallEventBus.isLegacyBroadcasts()) {
+                isReceiverRegistered = true;
+                return;
+            }
+
             IntentFilter intentFilter = new IntentFilter();
             intentFilter.addAction(ACTION_END_CALL);
             intentFilter.addAction(ACTION_ANSWER_CALL);
@@ -702,6 +919,7 @@ public class CallKeepModule {
             intentFilter.addAction(ACTION_ONGOING_CALL);
             intentFilter.addAction(ACTION_AUDIO_SESSION);
             intentFilter.addAction(ACTION_CHECK_REACHABILITY);
+            intentFilter.addAction(ACTION_NATIVE_INCOMING_CALL);
             LocalBroadcastManager.getInstance(this._context).registerReceiver(voiceBroadcastReceiver, intentFilter);
             isReceiverRegistered = true;
         }
@@ -752,71 +970,250 @@ public class CallKeepModule {
         }
     }
 
-    private class VoiceBroadcastReceiver extends BroadcastReceiver {
+    /*
+     * Sends the events raised while no engine was attached, they stay journaled until Dart acks them
+     */
+    private void replayJournal() {
+        CallEventJournal journal = CallEventJournal.getInstance(_context);
+        if (journal == null || journal.isEmpty()) {
+            return;
+        }
+        List<CallEventJournal.Entry> entries = journal.pending();
+        Log.d(TAG, "Replaying " + entries.size() + " journaled events");
+        for (CallEventJournal.Entry entry : entries) {
+            onCallEvent(entry.event, entry.sequence);
+        }
+    }
+
+    // Lets Dart adopt the calls displayed natively while it was not running
+    private void announceNativeCalls() {
+        for (String uuid : IncomingCallLauncher.getUnannouncedCalls()) {
+            VoiceConnection connection = VoiceConnectionService.callRegistry.get(uuid);
+            if (connection == null) {
+                // Telecom did not create the connection yet, it announces it once it does
+                continue;
+            }
+            IncomingCallLauncher.forgetCall(uuid);
+            // setInitialized() moves a ringing connection to STATE_NEW
+            int state = connection.getState();
+            if (state != Connection.STATE_RINGING && state != Connection.STATE_NEW) {
+                continue;
+            }
+            Uri address = connection.getAddress();
+            ConstraintsMap args = new ConstraintsMap();
+            args.putString("callUUID", uuid);
+            args.putString("handle", address != null ? address.getSchemeSpecificPart() : "");
+            args.putString("localizedCallerName", connection.getCallerDisplayName() != null ? connection.getCallerDisplayName() : "");
+            args.putBoolean("hasVideo", false);
+            args.putBoolean("fromPushKit", true);
+            sendEventToFlutter("CallKeepDidDisplayIncomingCall", args);
+        }
+    }
+
+    private void onCallEvent(CallEvent event) {
+        onCallEvent(event, 0);
+    }
+
+    private void onCallEvent(CallEvent event, int sequence) {
+        ConstraintsMap args = new ConstraintsMap();
+        if (sequence > 0) {
+            args.putInt("sequence", sequence);
+        }
+
+        switch (event.action) {
+            case ACTION_END_CALL:
+                args.putString("callUUID", event.callUUID);
+                sendEventToFlutter("CallKeepPerformEndCallAction", args);
+                break;
+            case ACTION_ANSWER_CALL:
+                args.putString("callUUID", event.callUUID);
+                sendEventToFlutter("CallKeepPerformAnswerCallAction", args);
+                break;
+            case ACTION_HOLD_CALL:
+                args.putBoolean("hold", true);
+                args.putString("callUUID", event.callUUID);
+                sendEventToFlutter("CallKeepDidToggleHoldAction", args);
+                break;
+            case ACTION_UNHOLD_CALL:
+                args.putBoolean("hold", false);
+                args.putString("callUUID", event.callUUID);
+                sendEventToFlutter("CallKeepDidToggleHoldAction", args);
+                break;
+            case ACTION_MUTE_CALL:
+                args.putBoolean("muted", true);
+                args.putString("callUUID", event.callUUID);
+                sendEventToFlutter("CallKeepDidPerformSetMutedCallAction", args);
+                break;
+            case ACTION_UNMUTE_CALL:
+                args.putBoolean("muted", false);
+                args.putString("callUUID", event.callUUID);
+                sendEventToFlutter("CallKeepDidPerformSetMutedCallAction", args);
+                break;
+            case ACTION_DTMF_TONE:
+                args.putString("digits", event.digits);
+                args.putString("callUUID", event.callUUID);
+                sendEventToFlutter("CallKeepDidPerformDTMFAction", args);
+                break;
+            case ACTION_ONGOING_CALL:
+                args.putString("callUUID", event.callUUID);
+                args.putString("handle", event.number);
+                args.putString("name", event.callerName);
+                sendEventToFlutter("CallKeepDidReceiveStartCallAction", args);
+                break;
+            case ACTION_AUDIO_SESSION:
+                sendEventToFlutter("CallKeepDidActivateAudioSession", args);
+                break;
+            case ACTION_CHECK_REACHABILITY:
+                sendEventToFlutter("CallKeepCheckReachability", args);
+                break;
+            case ACTION_NATIVE_INCOMING_CALL:
+                announceNativeCalls();
+                break;
+            case ACTION_WAKE_APP:
+                Intent headlessIntent = new Intent(_context, CallKeepBackgroundMessagingService.class);
+                headlessIntent.putExtra("callUUID", event.callUUID);
+                headlessIntent.putExtra("name", event.callerName);
+                headlessIntent.putExtra("handle", event.number);
+                Log.d(TAG, "wakeUpApplication: " + event.callUUID + ", number : " + event.number + ", displayName:" + event.callerName);
+
+                ComponentName name = _context.startService(headlessIntent);
+                if (name != null) {
+                    CallKeepBackgroundMessagingService.acquireWakeLock(_context, event.callUUID);
+                }
+                break;
+        }
+    }
+
+    /*
+     * Records the time from dispatch to completion of a method call, including asynchronous ones
+     */
+    private static class TimedResult implements Result {
+        private final Result result;
+        private final LatencyHistogram latency;
+        private final long startNanos;
+
+        TimedResult(Result result, LatencyHistogram latency, long startNanos) {
+            this.result = result;
+            this.latency = latency;
+            this.startNanos = startNanos;
+        }
+
         @Override
-        public void onReceive(Context context, Intent intent) {
+        public void success(@Nullable Object value) {
+            latency.record(System.nanoTime() - startNanos);
+            result.success(value);
+        }
+
+        @Override
+        public void error(String errorCode, @Nullable String errorMessage, @Nullable Object errorDetails) {
+            latency.record(System.nanoTime() - startNanos);
+            result.error(errorCode, errorMessage, errorDetails);
+        }
+
+        @Override
+        public void notImplemented() {
+            latency.record(System.nanoTime() - startNanos);
+            result.notImplemented();
+        }
+    }
+
+    /*
+     * Collects the result of one command of a batch
+     */
+    private static class BatchResult implements Result {
+        private final ConstraintsMap map = new ConstraintsMap();
+
+        @Override
+        public void success(@Nullable Object value) {
+            map.putBoolean("ok", true);
+            map.putObject("value", value);
+        }
+
+        @Override
+        public void error(String errorCode, @Nullable String errorMessage, @Nullable Object errorDetails) {
+            map.putBoolean("ok", false);
+            map.putString("code", errorCode);
+            map.putString("message", errorMessage);
+        }
+
+        @Override
+        public void notImplemented() {
+            error("E_NOT_IMPLEMENTED", null, null);
+        }
+
+        ConstraintsMap toConstraintsMap() {
+            return map;
+        }
+    }
+
+    /*
+     * Tells Dart that a phone account registration nobody waited for failed
+     */
+    private class PhoneAccountErrorResult implements Result {
+        @Override
+        public void success(@Nullable Object value) {
+        }
+
+        @Override
+        public void error(String errorCode, @Nullable String errorMessage, @Nullable Object errorDetails) {
             ConstraintsMap args = new ConstraintsMap();
-            HashMap<String, String> attributeMap = (HashMap<String, String>) intent.getSerializableExtra("attributeMap");
+            args.putString("code", errorCode);
+            args.putString("message", errorMessage);
+            sendEventToFlutter("CallKeepDidFailToRegisterPhoneAccount", args);
+        }
 
-            switch (intent.getAction()) {
-                case ACTION_END_CALL:
-                    args.putString("callUUID", attributeMap.get(EXTRA_CALL_UUID));
-                    sendEventToFlutter("CallKeepPerformEndCallAction", args);
-                    break;
-                case ACTION_ANSWER_CALL:
-                    args.putString("callUUID", attributeMap.get(EXTRA_CALL_UUID));
-                    sendEventToFlutter("CallKeepPerformAnswerCallAction", args);
-                    break;
-                case ACTION_HOLD_CALL:
-                    args.putBoolean("hold", true);
-                    args.putString("callUUID", attributeMap.get(EXTRA_CALL_UUID));
-                    sendEventToFlutter("CallKeepDidToggleHoldAction", args);
-                    break;
-                case ACTION_UNHOLD_CALL:
-                    args.putBoolean("hold", false);
-                    args.putString("callUUID", attributeMap.get(EXTRA_CALL_UUID));
-                    sendEventToFlutter("CallKeepDidToggleHoldAction", args);
-                    break;
-                case ACTION_MUTE_CALL:
-                    args.putBoolean("muted", true);
-                    args.putString("callUUID", attributeMap.get(EXTRA_CALL_UUID));
-                    sendEventToFlutter("CallKeepDidPerformSetMutedCallAction", args);
-                    break;
-                case ACTION_UNMUTE_CALL:
-                    args.putBoolean("muted", false);
-                    args.putString("callUUID", attributeMap.get(EXTRA_CALL_UUID));
-                    sendEventToFlutter("CallKeepDidPerformSetMutedCallAction", args);
-                    break;
-                case ACTION_DTMF_TONE:
-                    args.putString("digits", attributeMap.get("DTMF"));
-                    args.putString("callUUID", attributeMap.get(EXTRA_CALL_UUID));
-                    sendEventToFlutter("CallKeepDidPerformDTMFAction", args);
-                    break;
-                case ACTION_ONGOING_CALL:
-                    args.putString("callUUID", attributeMap.get(EXTRA_CALL_UUID));
-                    args.putString("handle", attributeMap.get(EXTRA_CALL_NUMBER));
-                    args.putString("name", attributeMap.get(EXTRA_CALLER_NAME));
-                    sendEventToFlutter("CallKeepDidReceiveStartCallAction", args);
-                    break;
-                case ACTION_AUDIO_SESSION:
-                    sendEventToFlutter("CallKeepDidActivateAudioSession", args);
-                    break;
-                case ACTION_CHECK_REACHABILITY:
-                    sendEventToFlutter("CallKeepCheckReachability", args);
-                    break;
-                case ACTION_WAKE_APP:
-                    Intent headlessIntent = new Intent(_context, CallKeepBackgroundMessagingService.class);
-                    headlessIntent.putExtra("callUUID", attributeMap.get(EXTRA_CALL_UUID));
-                    headlessIntent.putExtra("name", attributeMap.get(EXTRA_CALLER_NAME));
-                    headlessIntent.putExtra("handle", attributeMap.get(EXTRA_CALL_NUMBER));
-                    Log.d(TAG, "wakeUpApplication: " + attributeMap.get(EXTRA_CALL_UUID) + ", number : " + attributeMap.get(EXTRA_CALL_NUMBER) + ", displayName:" + attributeMap.get(EXTRA_CALLER_NAME));
-
-                    ComponentName name = _context.startService(headlessIntent);
-                    if (name != null) {
-                        CallKeepBackgroundMessagingService.acquireWakeLockNow(_context);
+        @Override
+        public void notImplemented() {
+        }
+    }
+
+    /*
+     * Sends the events of a main looper turn as one platform channel message
+     */
+    private class FlutterEventSink implements CallEventBatcher.Sink {
+        @Override
+        public void send(String eventName, ConstraintsMap params) {
+            if (binaryEvents && CallEventCodec.canEncode(eventName)) {
+                sendBatch(Collections.singletonList(new CallEventBatcher.Event(eventName, params)));
+                return;
+            }
+            _eventChannel.invokeMethod(eventName, params.toMap());
+        }
+
+        @Override
+        public void sendBatch(List<CallEventBatcher.Event> events) {
+            final CallEventCodec.Message message = binaryEvents ? eventCodec.encode(events) : null;
+            if (message != null) {
+                _binaryEventChannel.send(message.buffer, reply -> {
+                    if (reply != null) {
+                        eventCodec.acknowledge(message);
+                    } else {
+                        // The next messages keep defining the call ids this one defined
+                        Log.w(TAG, "Binary events dropped by Dart");
                     }
-                    break;
+                });
+                return;
             }
+
+            ConstraintsArray batch = new ConstraintsArray();
+            for (CallEventBatcher.Event event : events) {
+                ConstraintsMap entry = new ConstraintsMap();
+                entry.putString("event", event.name);
+                entry.putMap("body", event.params.toMap());
+                batch.pushMap(entry);
+            }
+            _eventChannel.invokeMethod("CallKeepEventBatch", batch.toArrayList());
+        }
+    }
+
+    /*
+     * Receives call events when legacyBroadcastEvents is enabled
+     */
+    private class VoiceBroadcastReceiver extends BroadcastReceiver {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            HashMap<String, String> attributeMap = (HashMap<String, String>) intent.getSerializableExtra("attributeMap");
+            onCallEvent(CallEvent.of(intent.getAction(), attributeMap));
         }
     }
 }
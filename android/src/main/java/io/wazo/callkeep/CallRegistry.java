@@ -0,0 +1,191 @@
+/*
+ * Copyright (c) 2016-2019 The CallKeep Authors (see the AUTHORS file)
+ * SPDX-License-Identifier: ISC, MIT
+ *
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package io.wazo.callkeep;
+
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Registry of the live {@link VoiceConnection}s, shared by the binder thread, the main looper
+ * and the method channel handler.
+ *
+ * Reads never lock: lookups go straight to a {@link ConcurrentHashMap} and bulk operations
+ * work on snapshots, so a connection may remove itself while another thread iterates.
+ * Writers serialize on the registry so the secondary indexes stay consistent with the
+ * primary uuid index.
+ */
+public class CallRegistry {
+    private final ConcurrentHashMap<String, Entry> byUuid = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Set<String>> byHandle = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Integer, Set<String>> byState = new ConcurrentHashMap<>();
+
+    private static final class Entry {
+        final VoiceConnection connection;
+        final String handle;
+        final int state;
+
+        Entry(VoiceConnection connection, @Nullable String handle, int state) {
+            this.connection = connection;
+            this.handle = handle;
+            this.state = state;
+        }
+    }
+
+    public synchronized void put(String uuid, VoiceConnection connection, @Nullable String handle) {
+        if (uuid == null) {
+            return;
+        }
+        Entry previous = byUuid.put(uuid, new Entry(connection, handle, connection.getState()));
+        if (previous != null) {
+            unindex(uuid, previous);
+        }
+        index(byHandle, handle, uuid);
+        index(byState, connection.getState(), uuid);
+    }
+
+    @Nullable
+    public synchronized VoiceConnection remove(String uuid) {
+        if (uuid == null) {
+            return null;
+        }
+        Entry previous = byUuid.remove(uuid);
+        if (previous == null) {
+            return null;
+        }
+        unindex(uuid, previous);
+        return previous.connection;
+    }
+
+    public synchronized void updateState(String uuid, int state) {
+        Entry entry = uuid != null ? byUuid.get(uuid) : null;
+        if (entry == null || entry.state == state) {
+            return;
+        }
+        byUuid.put(uuid, new Entry(entry.connection, entry.handle, state));
+        unindex(byState, entry.state, uuid);
+        index(byState, state, uuid);
+    }
+
+    public synchronized void updateHandle(String uuid, @Nullable String handle) {
+        Entry entry = uuid != null ? byUuid.get(uuid) : null;
+        if (entry == null || (handle == null ? entry.handle == null : handle.equals(entry.handle))) {
+            return;
+        }
+        byUuid.put(uuid, new Entry(entry.connection, handle, entry.state));
+        unindex(byHandle, entry.handle, uuid);
+        index(byHandle, handle, uuid);
+    }
+
+    @Nullable
+    public VoiceConnection get(String uuid) {
+        if (uuid == null) {
+            return null;
+        }
+        Entry entry = byUuid.get(uuid);
+        return entry != null ? entry.connection : null;
+    }
+
+    public boolean contains(String uuid) {
+        return uuid != null && byUuid.containsKey(uuid);
+    }
+
+    public int size() {
+        return byUuid.size();
+    }
+
+    public boolean isEmpty() {
+        return byUuid.isEmpty();
+    }
+
+    /**
+     * @return a point-in-time copy of every registered connection, safe to iterate while
+     * connections disconnect and deregister themselves.
+     */
+    public List<VoiceConnection> snapshot() {
+        List<VoiceConnection> connections = new ArrayList<>(byUuid.size());
+        for (Entry entry : byUuid.values()) {
+            connections.add(entry.connection);
+        }
+        return connections;
+    }
+
+    public List<String> uuids() {
+        return new ArrayList<>(byUuid.keySet());
+    }
+
+    public List<VoiceConnection> findByHandle(String handle) {
+        return resolve(handle != null ? byHandle.get(handle) : null);
+    }
+
+    /**
+     * @param state one of the {@link android.telecom.Connection} {@code STATE_*} constants.
+     */
+    public List<VoiceConnection> findByState(int state) {
+        return resolve(byState.get(state));
+    }
+
+    private List<VoiceConnection> resolve(@Nullable Set<String> uuids) {
+        if (uuids == null || uuids.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<VoiceConnection> connections = new ArrayList<>(uuids.size());
+        for (String uuid : uuids) {
+            VoiceConnection connection = get(uuid);
+            if (connection != null) {
+                connections.add(connection);
+            }
+        }
+        return connections;
+    }
+
+    private void unindex(String uuid, Entry entry) {
+        unindex(byHandle, entry.handle, uuid);
+        unindex(byState, entry.state, uuid);
+    }
+
+    private static <K> void index(ConcurrentHashMap<K, Set<String>> index, @Nullable K key, String uuid) {
+        if (key == null) {
+            return;
+        }
+        Set<String> uuids = index.get(key);
+        if (uuids == null) {
+            uuids = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+            index.put(key, uuids);
+        }
+        uuids.add(uuid);
+    }
+
+    private static <K> void unindex(ConcurrentHashMap<K, Set<String>> index, @Nullable K key, String uuid) {
+        if (key == null) {
+            return;
+        }
+        Set<String> uuids = index.get(key);
+        if (uuids == null) {
+            return;
+        }
+        uuids.remove(uuid);
+        if (uuids.isEmpty()) {
+            index.remove(key);
+        }
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2016-2019 The CallKeep Authors (see the AUTHORS file)
+ * SPDX-License-Identifier: ISC, MIT
+ *
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package io.wazo.callkeep;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.telecom.Connection;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps every live connection conferenceable with every other one.
+ *
+ * A new connection receives its peers straight away. Existing connections are brought up to
+ * date in a single pass posted to the main looper, so a burst of new calls costs one refresh
+ * instead of one per call, and connections already matching the current membership are skipped.
+ * Removals need no refresh: {@link Connection} drops destroyed peers from its own list.
+ */
+class ConferenceGraph {
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final LinkedHashMap<String, VoiceConnection> members = new LinkedHashMap<>();
+    private final HashMap<String, Integer> appliedVersions = new HashMap<>();
+    private int version = 0;
+    private boolean refreshScheduled = false;
+
+    private final Runnable refresh = new Runnable() {
+        @Override
+        public void run() {
+            refresh();
+        }
+    };
+
+    void add(String uuid, VoiceConnection connection) {
+        List<Connection> peers;
+        synchronized (this) {
+            if (uuid == null || members.get(uuid) == connection) {
+                return;
+            }
+            members.put(uuid, connection);
+            version++;
+            appliedVersions.put(uuid, version);
+            peers = peersOf(uuid);
+            scheduleRefresh();
+        }
+        connection.setConferenceableConnections(peers);
+    }
+
+    synchronized void remove(String uuid) {
+        if (uuid == null || members.remove(uuid) == null) {
+            return;
+        }
+        appliedVersions.remove(uuid);
+        version++;
+        // Peers prune destroyed connections themselves, so their lists are already current.
+        for (Map.Entry<String, Integer> applied : appliedVersions.entrySet()) {
+            if (applied.getValue() == version - 1) {
+                applied.setValue(version);
+            }
+        }
+    }
+
+    private void scheduleRefresh() {
+        if (!refreshScheduled) {
+            refreshScheduled = true;
+            handler.post(refresh);
+        }
+    }
+
+    private void refresh() {
+        List<VoiceConnection> stale = new ArrayList<>();
+        List<List<Connection>> peers = new ArrayList<>();
+        synchronized (this) {
+            refreshScheduled = false;
+            for (Map.Entry<String, VoiceConnection> member : members.entrySet()) {
+                Integer applied = appliedVersions.get(member.getKey());
+                if (applied != null && applied == version) {
+                    continue;
+                }
+                stale.add(member.getValue());
+                peers.add(peersOf(member.getKey()));
+                appliedVersions.put(member.getKey(), version);
+            }
+        }
+        for (int i = 0; i < stale.size(); i++) {
+            stale.get(i).setConferenceableConnections(peers.get(i));
+        }
+    }
+
+    private List<Connection> peersOf(String uuid) {
+        List<Connection> peers = new ArrayList<>(members.size());
+        for (Map.Entry<String, VoiceConnection> member : members.entrySet()) {
+            if (!member.getKey().equals(uuid)) {
+                peers.add(member.getValue());
+            }
+        }
+        return peers;
+    }
+}
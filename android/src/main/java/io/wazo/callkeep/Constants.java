@@ -8,6 +8,7 @@ public class Constants {
     public static final String ACTION_END_CALL = "ACTION_END_CALL";
     public static final String ACTION_HOLD_CALL = "ACTION_HOLD_CALL";
     public static final String ACTION_MUTE_CALL = "ACTION_MUTE_CALL";
+    public static final String ACTION_NATIVE_INCOMING_CALL = "ACTION_NATIVE_INCOMING_CALL";
     public static final String ACTION_ONGOING_CALL = "ACTION_ONGOING_CALL";
     public static final String ACTION_UNHOLD_CALL = "ACTION_UNHOLD_CALL";
     public static final String ACTION_UNMUTE_CALL = "ACTION_UNMUTE_CALL";
@@ -18,4 +19,9 @@ public class Constants {
     public static final String EXTRA_CALLER_NAME = "EXTRA_CALLER_NAME";
 
     public static final int FOREGROUND_SERVICE_TYPE_MICROPHONE = 128;
+
+    // reportEndCallWithUUID reasons
+    public static final int DISCONNECT_REASON_FAILED = 1;
+    public static final int DISCONNECT_REASON_UNANSWERED = 3;
+    public static final int DISCONNECT_REASON_MISSED = 6;
 }
@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) 2016-2019 The CallKeep Authors (see the AUTHORS file)
+ * SPDX-License-Identifier: ISC, MIT
+ *
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package io.wazo.callkeep;
+
+import android.app.Notification;
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.app.Service;
+import android.content.Context;
+import android.os.Build;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+import androidx.core.app.NotificationCompat;
+
+import java.util.HashSet;
+
+import io.wazo.callkeep.utils.ConstraintsMap;
+
+import static io.wazo.callkeep.Constants.FOREGROUND_SERVICE_TYPE_MICROPHONE;
+
+/**
+ * Keeps the connection service in the foreground while at least one call is active.
+ *
+ * Calls are counted by uuid: the service goes to the foreground for the first call and leaves
+ * it when the last one ends. The notification is built once per foreground service config and
+ * reused afterwards.
+ */
+class ForegroundServiceController {
+    private static final String TAG = "RNCK:ForegroundService";
+
+    private final HashSet<String> activeCalls = new HashSet<>();
+    private boolean started = false;
+    @Nullable
+    private Notification notification;
+    // The settings the cached notification was built from
+    @Nullable
+    private CallKeepConfig.ForegroundService notificationSettings;
+
+    private int starts = 0;
+    private int stops = 0;
+    private int rebuilds = 0;
+
+    synchronized void acquire(Service service, String uuid) {
+        if (!activeCalls.add(uuid)) {
+            return;
+        }
+        Log.d(TAG, "acquire: " + uuid + ", active calls: " + activeCalls.size());
+        if (started || Build.VERSION.SDK_INT < Build.VERSION_CODES.O) {
+            // Foreground services not required before SDK 28
+            return;
+        }
+
+        CallKeepConfig.ForegroundService settings = VoiceConnectionService.getConfig(service).foregroundService;
+        if (settings == null) {
+            Log.w(TAG, "Not creating foregroundService because not configured");
+            return;
+        }
+
+        Log.d(TAG, "Starting foreground service");
+        service.startForeground(FOREGROUND_SERVICE_TYPE_MICROPHONE, getNotification(service, settings));
+        started = true;
+        starts++;
+    }
+
+    synchronized void release(Service service, String uuid) {
+        if (!activeCalls.remove(uuid)) {
+            return;
+        }
+        Log.d(TAG, "release: " + uuid + ", active calls: " + activeCalls.size());
+        if (!started || !activeCalls.isEmpty()) {
+            return;
+        }
+
+        Log.d(TAG, "Stopping foreground service");
+        service.stopForeground(FOREGROUND_SERVICE_TYPE_MICROPHONE);
+        started = false;
+        stops++;
+    }
+
+    /**
+     * Builds the notification and its channel ahead of the first call.
+     */
+    synchronized void prewarm(Context context, @Nullable CallKeepConfig.ForegroundService settings) {
+        if (settings == null || Build.VERSION.SDK_INT < Build.VERSION_CODES.O) {
+            return;
+        }
+        getNotification(context, settings);
+    }
+
+    synchronized ConstraintsMap getMetrics() {
+        ConstraintsMap metrics = new ConstraintsMap();
+        metrics.putInt("activeCalls", activeCalls.size());
+        metrics.putBoolean("started", started);
+        metrics.putInt("starts", starts);
+        metrics.putInt("stops", stops);
+        metrics.putInt("rebuilds", rebuilds);
+        return metrics;
+    }
+
+    private Notification getNotification(Context context, CallKeepConfig.ForegroundService settings) {
+        if (notification != null && notificationSettings == settings) {
+            return notification;
+        }
+
+        NotificationChannel chan = new NotificationChannel(settings.channelId, settings.channelName, NotificationManager.IMPORTANCE_NONE);
+        chan.setLockscreenVisibility(Notification.VISIBILITY_PRIVATE);
+        NotificationManager manager = (NotificationManager) context.getSystemService(Context.NOTIFICATION_SERVICE);
+        assert manager != null;
+        manager.createNotificationChannel(chan);
+
+        NotificationCompat.Builder notificationBuilder = new NotificationCompat.Builder(context, settings.channelId);
+        notificationBuilder.setOngoing(true)
+                .setContentTitle(settings.notificationTitle)
+                .setPriority(NotificationManager.IMPORTANCE_MIN)
+                .setCategory(Notification.CATEGORY_SERVICE);
+        if (settings.smallIconResId != 0) {
+            notificationBuilder.setSmallIcon(settings.smallIconResId);
+        }
+
+        notification = notificationBuilder.build();
+        notificationSettings = settings;
+        rebuilds++;
+        return notification;
+    }
+}
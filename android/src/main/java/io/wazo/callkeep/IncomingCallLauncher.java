@@ -0,0 +1,166 @@
+/*
+ * Copyright (c) 2016-2019 The CallKeep Authors (see the AUTHORS file)
+ * SPDX-License-Identifier: ISC, MIT
+ *
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package io.wazo.callkeep;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.pm.ApplicationInfo;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Bundle;
+import android.telecom.PhoneAccount;
+import android.telecom.PhoneAccountHandle;
+import android.telecom.TelecomManager;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import io.wazo.callkeep.notification.CallNotificationService;
+
+import static io.wazo.callkeep.Constants.EXTRA_CALLER_NAME;
+import static io.wazo.callkeep.Constants.EXTRA_CALL_UUID;
+
+/**
+ * Reports incoming calls to Telecom.
+ *
+ * {@link #displayIncomingCall(Context, String, String, String)} is the native entry point for
+ * a push received while the app is not running: it rings straight away with the settings stored
+ * by the last setup(), without waiting for a Flutter engine. Once Dart attaches, or as soon as
+ * Telecom creates the connection if it already is, {@link CallKeepModule} reports the calls
+ * still ringing with a CallKeepDidDisplayIncomingCall event so the app can adopt them.
+ */
+public final class IncomingCallLauncher {
+    private static final String TAG = "RNCK:IncomingCallLauncher";
+
+    // Calls displayed natively that Dart did not hear about yet
+    private static final Set<String> unannouncedCalls = Collections.synchronizedSet(new HashSet<String>());
+
+    private IncomingCallLauncher() {
+    }
+
+    /**
+     * Displays an incoming call without going through Dart. Can be called from any thread, it
+     * makes blocking calls to Telecom.
+     *
+     * @return false when the call could not be reported, typically because setup() never ran
+     * on this install so there is no phone account.
+     */
+    public static boolean displayIncomingCall(Context context, String uuid, String number, @Nullable String callerName) {
+        return displayIncomingCall(context, uuid, number, callerName, null);
+    }
+
+    /**
+     * @param avatar caller picture shown in the notification: a local file path, or a file or
+     * content uri readable by the app.
+     */
+    public static boolean displayIncomingCall(Context context, String uuid, String number, @Nullable String callerName, @Nullable String avatar) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M || uuid == null || number == null) {
+            return false;
+        }
+        if (VoiceConnectionService.callRegistry.contains(uuid)) {
+            Log.d(TAG, "displayIncomingCall: " + uuid + " is already displayed");
+            return true;
+        }
+
+        Context appContext = context.getApplicationContext();
+        if (VoiceConnectionService.getConfig(appContext) == CallKeepConfig.EMPTY) {
+            Log.w(TAG, "displayIncomingCall: no stored settings, setup() must run once first");
+            return false;
+        }
+
+        Log.d(TAG, "displayIncomingCall: " + uuid + ", number: " + number);
+        TelecomManager telecomManager = (TelecomManager) appContext.getSystemService(Context.TELECOM_SERVICE);
+        unannouncedCalls.add(uuid);
+        try {
+            if (addNewIncomingCall(appContext, telecomManager, getPhoneAccountHandle(appContext), uuid, number, callerName, avatar)) {
+                return true;
+            }
+        } catch (SecurityException | IllegalArgumentException e) {
+            Log.w(TAG, "displayIncomingCall: Telecom refused the call", e);
+        }
+        unannouncedCalls.remove(uuid);
+        return false;
+    }
+
+    /**
+     * @return the uuids of the calls displayed natively that Dart did not hear about yet. They
+     * are kept until {@link #forgetCall(String)}, their connection may not be created yet.
+     */
+    static List<String> getUnannouncedCalls() {
+        synchronized (unannouncedCalls) {
+            return new ArrayList<>(unannouncedCalls);
+        }
+    }
+
+    static boolean isUnannounced(String uuid) {
+        return unannouncedCalls.contains(uuid);
+    }
+
+    /**
+     * Stops tracking a call, once it was announced to Dart or its connection is gone.
+     */
+    static void forgetCall(String uuid) {
+        unannouncedCalls.remove(uuid);
+    }
+
+    /**
+     * @return false when the call was added to Telecom but could not be shown, it is then failed.
+     */
+    static boolean addNewIncomingCall(Context context, TelecomManager telecomManager, PhoneAccountHandle handle, String uuid, String number, @Nullable String callerName, @Nullable String avatar) {
+        Bundle extras = new Bundle();
+        Uri uri = Uri.fromParts(PhoneAccount.SCHEME_SIP, number, null);
+        extras.putParcelable(TelecomManager.EXTRA_INCOMING_CALL_ADDRESS, uri);
+        extras.putString(EXTRA_CALLER_NAME, callerName);
+        extras.putString(EXTRA_CALL_UUID, uuid);
+
+        telecomManager.addNewIncomingCall(Build.VERSION.SDK_INT >= Build.VERSION_CODES.O ? handle : null, extras);
+
+        Intent intent = new Intent(context, CallNotificationService.class);
+        intent.putExtra("callerName", callerName);
+        intent.putExtra("number", number);
+        intent.putExtra("uuid", uuid);
+        intent.putExtra("avatar", avatar);
+        try {
+            context.startService(intent);
+        } catch (IllegalStateException e) {
+            // Not allowed to start a service from the background: nothing would let the user answer
+            Log.w(TAG, "addNewIncomingCall: cannot start the notification service, failing " + uuid, e);
+            VoiceConnectionService.abandonIncomingCall(uuid);
+            return false;
+        }
+        return true;
+    }
+
+    static PhoneAccountHandle getPhoneAccountHandle(Context context) {
+        return new PhoneAccountHandle(new ComponentName(context, VoiceConnectionService.class), getApplicationName(context));
+    }
+
+    static String getApplicationName(Context appContext) {
+        ApplicationInfo applicationInfo = appContext.getApplicationInfo();
+        int stringId = applicationInfo.labelRes;
+
+        return stringId == 0 ? applicationInfo.nonLocalizedLabel.toString() : appContext.getString(stringId);
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright (c) 2016-2019 The CallKeep Authors (see the AUTHORS file)
+ * SPDX-License-Identifier: ISC, MIT
+ *
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package io.wazo.callkeep;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import java.nio.charset.Charset;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Rings for an incoming call push straight from native code, without going through Dart.
+ *
+ * Takes the data map of the push, as sent by the push test tool: caller_id, caller_name,
+ * caller_id_type, has_video and an optional uuid. The map is read in place and validated, and
+ * a push already handled recently, as FCM may deliver it twice, is dropped. has_video is only
+ * validated, calls are displayed as audio calls like displayIncomingCall() does. Meant to be called
+ * from a FirebaseMessagingService:
+ *
+ * <pre>
+ * public void onMessageReceived(RemoteMessage message) {
+ *     IncomingCallPush.handle(this, message.getData(), message.getMessageId());
+ * }
+ * </pre>
+ */
+public final class IncomingCallPush {
+    private static final String TAG = "RNCK:IncomingCallPush";
+
+    public static final String KEY_CALLER_ID = "caller_id";
+    public static final String KEY_CALLER_NAME = "caller_name";
+    public static final String KEY_CALLER_ID_TYPE = "caller_id_type";
+    public static final String KEY_HAS_VIDEO = "has_video";
+    public static final String KEY_UUID = "uuid";
+
+    private static final int MAX_CALLER_ID_LENGTH = 256;
+    private static final long DEDUPE_WINDOW_MS = 60000;
+    private static final int DEDUPE_SIZE = 32;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    public enum Outcome {
+        DISPLAYED,
+        DUPLICATE,
+        INVALID,
+        FAILED,
+    }
+
+    // When each recent push was handled, by dedupe key
+    private static final LinkedHashMap<String, Long> recent = new LinkedHashMap<String, Long>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+            return size() > DEDUPE_SIZE;
+        }
+    };
+
+    private IncomingCallPush() {
+    }
+
+    public static Outcome handle(Context context, Map<String, String> data) {
+        return handle(context, data, null);
+    }
+
+    /**
+     * Displays the incoming call described by the push. Can be called from any thread, it makes
+     * blocking calls to Telecom.
+     *
+     * @param messageId id of the push message, used to derive a stable call uuid and to dedupe
+     * when the data has no uuid.
+     */
+    public static Outcome handle(Context context, Map<String, String> data, @Nullable String messageId) {
+        String callerId = data.get(KEY_CALLER_ID);
+        if (callerId == null || callerId.isEmpty() || callerId.length() > MAX_CALLER_ID_LENGTH) {
+            Log.w(TAG, "Invalid " + KEY_CALLER_ID + ": " + callerId);
+            return Outcome.INVALID;
+        }
+        String type = data.get(KEY_CALLER_ID_TYPE);
+        if (type != null && !"number".equals(type) && !"email".equals(type) && !"generic".equals(type)) {
+            Log.w(TAG, "Invalid " + KEY_CALLER_ID_TYPE + ": " + type);
+            return Outcome.INVALID;
+        }
+        String hasVideo = data.get(KEY_HAS_VIDEO);
+        if (hasVideo != null && !"true".equals(hasVideo) && !"false".equals(hasVideo)) {
+            Log.w(TAG, "Invalid " + KEY_HAS_VIDEO + ": " + hasVideo);
+            return Outcome.INVALID;
+        }
+
+        String uuid = data.get(KEY_UUID);
+        String dedupeKey;
+        if (uuid != null) {
+            if (!isUuid(uuid)) {
+                Log.w(TAG, "Invalid " + KEY_UUID + ": " + uuid);
+                return Outcome.INVALID;
+            }
+            dedupeKey = uuid;
+        } else if (messageId != null) {
+            uuid = UUID.nameUUIDFromBytes(messageId.getBytes(UTF_8)).toString();
+            dedupeKey = uuid;
+        } else {
+            // Nothing identifies the push, a caller calling twice in the window is dropped
+            uuid = UUID.randomUUID().toString();
+            dedupeKey = callerId;
+        }
+
+        if (!markHandled(dedupeKey)) {
+            Log.d(TAG, "Dropping a duplicate push for " + dedupeKey);
+            return Outcome.DUPLICATE;
+        }
+
+        String callerName = data.get(KEY_CALLER_NAME);
+        if (IncomingCallLauncher.displayIncomingCall(context, uuid, callerId, callerName)) {
+            return Outcome.DISPLAYED;
+        }
+        forget(dedupeKey);
+        return Outcome.FAILED;
+    }
+
+    /**
+     * @return false when the key was handled within the dedupe window.
+     */
+    private static boolean markHandled(String key) {
+        long now = SystemClock.elapsedRealtime();
+        synchronized (recent) {
+            Long handledAt = recent.get(key);
+            if (handledAt != null && now - handledAt < DEDUPE_WINDOW_MS) {
+                return false;
+            }
+            recent.put(key, now);
+            return true;
+        }
+    }
+
+    private static void forget(String key) {
+        synchronized (recent) {
+            recent.remove(key);
+        }
+    }
+
+    // Checks the 8-4-4-4-12 hex layout without allocating
+    private static boolean isUuid(String value) {
+        if (value.length() != 36) {
+            return false;
+        }
+        for (int i = 0; i < 36; i++) {
+            char c = value.charAt(i);
+            if (i == 8 || i == 13 || i == 18 || i == 23) {
+                if (c != '-') {
+                    return false;
+                }
+            } else if (Character.digit(c, 16) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
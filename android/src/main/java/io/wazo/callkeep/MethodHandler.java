@@ -0,0 +1,13 @@
+package io.wazo.callkeep;
+
+import androidx.annotation.NonNull;
+
+import io.flutter.plugin.common.MethodCall;
+import io.flutter.plugin.common.MethodChannel.Result;
+
+/**
+ * Handles one method of the FlutterCallKeep.Method channel.
+ */
+interface MethodHandler {
+    void handle(@NonNull MethodCall call, @NonNull Result result);
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (c) 2016-2019 The CallKeep Authors (see the AUTHORS file)
+ * SPDX-License-Identifier: ISC, MIT
+ *
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package io.wazo.callkeep;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.telecom.PhoneAccount;
+import android.telecom.PhoneAccountHandle;
+import android.telecom.TelecomManager;
+import android.text.TextUtils;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import java.util.HashMap;
+
+/**
+ * Phone accounts known to this process, keyed by handle.
+ *
+ * Saves a getPhoneAccount binder call per connection, and the registration of an account
+ * identical to the one already registered. An entry only changes when an account with a
+ * different label, capabilities or icon is registered.
+ *
+ * Telecom keeps the accounts across process starts, so a fingerprint of each registered
+ * account is persisted too: a new process skips the registration when it is unchanged.
+ */
+class PhoneAccountCache {
+    private static final String TAG = "RNCK:PhoneAccountCache";
+    private static final String PREFERENCES = "io.wazo.callkeep.phoneAccounts";
+
+    /* What we know about one account */
+    private static final class Entry {
+        @Nullable
+        final CharSequence label;
+        final int capabilities;
+        final int iconResId;
+        // Whether this process registered the account, rather than only looking it up
+        final boolean registered;
+
+        Entry(@Nullable CharSequence label, int capabilities, int iconResId, boolean registered) {
+            this.label = label;
+            this.capabilities = capabilities;
+            this.iconResId = iconResId;
+            this.registered = registered;
+        }
+    }
+
+    private final HashMap<PhoneAccountHandle, Entry> entries = new HashMap<>();
+
+    /**
+     * @return whether an account with this content still has to be registered.
+     */
+    synchronized boolean needsRegistration(Context context, PhoneAccountHandle handle, CharSequence label, int capabilities, int iconResId) {
+        Entry entry = entries.get(handle);
+        if (entry != null && entry.registered) {
+            return entry.capabilities != capabilities
+                    || entry.iconResId != iconResId
+                    || !TextUtils.equals(entry.label, label);
+        }
+
+        // Registered by an earlier process
+        String stored = getPreferences(context).getString(handle.getId(), null);
+        if (!fingerprint(label, capabilities, iconResId).equals(stored)) {
+            return true;
+        }
+        entries.put(handle, new Entry(label, capabilities, iconResId, true));
+        return false;
+    }
+
+    synchronized void onRegistered(Context context, PhoneAccountHandle handle, CharSequence label, int capabilities, int iconResId) {
+        Log.d(TAG, "onRegistered: " + handle.getId() + ", capabilities: " + capabilities);
+        entries.put(handle, new Entry(label, capabilities, iconResId, true));
+        getPreferences(context).edit()
+                .putString(handle.getId(), fingerprint(label, capabilities, iconResId))
+                .apply();
+    }
+
+    private static String fingerprint(CharSequence label, int capabilities, int iconResId) {
+        return capabilities + ":" + iconResId + ":" + label;
+    }
+
+    private static SharedPreferences getPreferences(Context context) {
+        return context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * @return the capabilities of the account, looked up once, or 0 if it is not registered.
+     */
+    int getCapabilities(TelecomManager telecomManager, @Nullable PhoneAccountHandle handle) {
+        if (handle == null) {
+            return 0;
+        }
+        synchronized (this) {
+            Entry entry = entries.get(handle);
+            if (entry != null) {
+                return entry.capabilities;
+            }
+        }
+
+        PhoneAccount account = telecomManager.getPhoneAccount(handle);
+        if (account == null) {
+            // Not cached: the account may be registered later on
+            return 0;
+        }
+        synchronized (this) {
+            if (!entries.containsKey(handle)) {
+                entries.put(handle, new Entry(account.getLabel(), account.getCapabilities(), 0, false));
+            }
+            return entries.get(handle).capabilities;
+        }
+    }
+}
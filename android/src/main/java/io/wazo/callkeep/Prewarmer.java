@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) 2016-2019 The CallKeep Authors (see the AUTHORS file)
+ * SPDX-License-Identifier: ISC, MIT
+ *
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package io.wazo.callkeep;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+
+import io.wazo.callkeep.utils.ConstraintsArray;
+import io.wazo.callkeep.utils.ConstraintsMap;
+
+/**
+ * Runs the one-time work of the first call ahead of it: channel creation, lookups, class
+ * loading...
+ *
+ * Steps run in the order they were added, each on the main thread or on a background thread,
+ * one at a time. A failing step is recorded and the next ones still run. Every step must be
+ * idempotent since the first call may come before the pipeline is done.
+ */
+class Prewarmer {
+    private static final String TAG = "RNCK:Prewarmer";
+
+    static final String STATE_IDLE = "idle";
+    static final String STATE_RUNNING = "running";
+    static final String STATE_DONE = "done";
+
+    interface Step {
+        void run() throws Exception;
+    }
+
+    /* A step and the thread it runs on */
+    private static final class Stage {
+        final String name;
+        final boolean onMainThread;
+        final Step step;
+
+        Stage(String name, boolean onMainThread, Step step) {
+            this.name = name;
+            this.onMainThread = onMainThread;
+            this.step = step;
+        }
+    }
+
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final ArrayList<Stage> stages = new ArrayList<>();
+    private final ConstraintsArray timings = new ConstraintsArray();
+    private String state = STATE_IDLE;
+    private long startedAt = 0;
+    private long totalMs = 0;
+    private HandlerThread thread;
+    private Handler worker;
+
+    /**
+     * Must be called before {@link #start()}.
+     */
+    void add(String name, boolean onMainThread, Step step) {
+        stages.add(new Stage(name, onMainThread, step));
+    }
+
+    synchronized void start() {
+        if (!STATE_IDLE.equals(state)) {
+            return;
+        }
+        state = STATE_RUNNING;
+        startedAt = SystemClock.elapsedRealtime();
+        thread = new HandlerThread("CallKeepPrewarm");
+        thread.start();
+        worker = new Handler(thread.getLooper());
+        next(0);
+    }
+
+    /**
+     * @return the state, the total duration and the duration of each step that ran.
+     */
+    synchronized ConstraintsMap getReport() {
+        ConstraintsMap report = new ConstraintsMap();
+        report.putString("state", state);
+        report.putInt("totalMs", (int) (STATE_RUNNING.equals(state) ? SystemClock.elapsedRealtime() - startedAt : totalMs));
+        report.putArray("steps", new ArrayList<>(timings.toArrayList()));
+        return report;
+    }
+
+    private void next(final int index) {
+        if (index == stages.size()) {
+            finish();
+            return;
+        }
+        final Stage stage = stages.get(index);
+        (stage.onMainThread ? mainHandler : worker).post(() -> {
+            run(stage);
+            next(index + 1);
+        });
+    }
+
+    private void run(Stage stage) {
+        long start = System.nanoTime();
+        String error = null;
+        try {
+            stage.step.run();
+        } catch (Exception e) {
+            Log.w(TAG, "Step " + stage.name + " failed", e);
+            error = e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName();
+        }
+        double durationMs = (System.nanoTime() - start) / 1e6;
+        Log.d(TAG, stage.name + " took " + durationMs + "ms");
+
+        ConstraintsMap timing = new ConstraintsMap();
+        timing.putString("name", stage.name);
+        timing.putString("thread", stage.onMainThread ? "main" : "background");
+        timing.putDouble("durationMs", durationMs);
+        timing.putBoolean("ok", error == null);
+        if (error != null) {
+            timing.putString("error", error);
+        }
+        synchronized (this) {
+            timings.pushMap(timing);
+        }
+    }
+
+    private synchronized void finish() {
+        totalMs = SystemClock.elapsedRealtime() - startedAt;
+        state = STATE_DONE;
+        Log.d(TAG, "Prewarmed in " + totalMs + "ms");
+        thread.quitSafely();
+        thread = null;
+        worker = null;
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) 2016-2019 The CallKeep Authors (see the AUTHORS file)
+ * SPDX-License-Identifier: ISC, MIT
+ *
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package io.wazo.callkeep;
+
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import io.wazo.callkeep.utils.ConstraintsMap;
+import io.wazo.callkeep.utils.LatencyHistogram;
+
+/**
+ * How long to wait for setReachable() after CallKeepCheckReachability before waking the app.
+ *
+ * Each CallKeepCheckReachability to setReachable() round trip is measured, replies coming after
+ * the timeout included. The timeout is twice the 95th percentile of the last round trips,
+ * kept within the configured bounds; until enough round trips are measured it is the former
+ * fixed 2 seconds.
+ *
+ * All methods must be called on the main thread, and the timer wheel must run its tasks there.
+ */
+class ReachabilityTimeout {
+    private static final String TAG = "RNCK:ReachabilityTimeout";
+
+    private static final int WINDOW = 32;
+    private static final int MIN_SAMPLES = 5;
+    private static final long DEFAULT_TIMEOUT_MS = 2000;
+
+    private final TimerWheel timers;
+    private final LatencyHistogram histogram = new LatencyHistogram();
+    // Last round trips, in milliseconds
+    private final long[] window = new long[WINDOW];
+    private int samples = 0;
+
+    // When the pending check was sent, 0 when none is
+    private long sentAtNanos = 0;
+    @Nullable
+    private TimerWheel.Timeout timeout;
+    private long currentTimeoutMs = DEFAULT_TIMEOUT_MS;
+
+    private int checks = 0;
+    private int replies = 0;
+    private int lateReplies = 0;
+    private int timeouts = 0;
+
+    ReachabilityTimeout(TimerWheel timers) {
+        this.timers = timers;
+    }
+
+    /**
+     * Starts waiting for a reply to a check just sent, replacing any pending wait.
+     */
+    void start(CallKeepConfig config, final Runnable onTimeout) {
+        cancelTimer();
+        checks++;
+        sentAtNanos = System.nanoTime();
+        currentTimeoutMs = computeTimeout(config.reachabilityTimeoutMinMs, config.reachabilityTimeoutMaxMs);
+        Log.d(TAG, "Waiting " + currentTimeoutMs + "ms for setReachable");
+
+        timeout = timers.schedule(() -> {
+            timeout = null;
+            timeouts++;
+            onTimeout.run();
+        }, currentTimeoutMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Records the round trip of the pending check, if any, and cancels its timer.
+     */
+    void onReachable() {
+        if (sentAtNanos == 0) {
+            return;
+        }
+        long elapsedNanos = System.nanoTime() - sentAtNanos;
+        sentAtNanos = 0;
+        if (timeout == null) {
+            lateReplies++;
+        } else {
+            cancelTimer();
+        }
+        replies++;
+        histogram.record(elapsedNanos);
+        window[samples % WINDOW] = elapsedNanos / 1000000;
+        samples++;
+        Log.d(TAG, "setReachable after " + elapsedNanos / 1000000 + "ms");
+    }
+
+    ConstraintsMap getMetrics() {
+        ConstraintsMap metrics = histogram.toConstraintsMap();
+        metrics.putInt("checks", checks);
+        metrics.putInt("replies", replies);
+        metrics.putInt("lateReplies", lateReplies);
+        metrics.putInt("timeouts", timeouts);
+        metrics.putInt("timeoutMs", (int) currentTimeoutMs);
+        metrics.putBoolean("pending", timeout != null);
+        return metrics;
+    }
+
+    private long computeTimeout(int minMs, int maxMs) {
+        long timeoutMs = DEFAULT_TIMEOUT_MS;
+        if (samples >= MIN_SAMPLES) {
+            int size = Math.min(samples, WINDOW);
+            long[] sorted = Arrays.copyOf(window, size);
+            Arrays.sort(sorted);
+            long p95 = sorted[Math.min(size - 1, (int) Math.ceil(size * 0.95) - 1)];
+            timeoutMs = p95 * 2;
+        }
+        return Math.max(minMs, Math.min(maxMs, timeoutMs));
+    }
+
+    private void cancelTimer() {
+        if (timeout != null) {
+            timeout.cancel();
+            timeout = null;
+        }
+    }
+}
@@ -0,0 +1,275 @@
+/*
+ * Copyright (c) 2016-2019 The CallKeep Authors (see the AUTHORS file)
+ * SPDX-License-Identifier: ISC, MIT
+ *
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package io.wazo.callkeep;
+
+import android.content.Context;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+import io.wazo.callkeep.utils.ConstraintsMap;
+
+/**
+ * Settings given to setup(), persisted so a cold-started service can be configured before
+ * any Flutter engine runs.
+ *
+ * The file is only rewritten when the checksum of the encoded settings changes.
+ *
+ * <pre>
+ * header  int magic, byte version, int crc32 of the payload, int payload length
+ * value   byte type, then: nothing (null, false, true), int, long, double,
+ *         string (int length, UTF-8 bytes), map (int count, count string key / value pairs)
+ *         or list (int count, count values)
+ * </pre>
+ */
+class SettingsSnapshot {
+    private static final String TAG = "RNCK:SettingsSnapshot";
+    private static final String FILE_NAME = "callkeep-settings.bin";
+    private static final int MAGIC = 0x434b5331;
+    private static final byte VERSION = 1;
+    private static final int HEADER_SIZE = 13;
+
+    private static final byte TYPE_NULL = 0;
+    private static final byte TYPE_FALSE = 1;
+    private static final byte TYPE_TRUE = 2;
+    private static final byte TYPE_INT = 3;
+    private static final byte TYPE_LONG = 4;
+    private static final byte TYPE_DOUBLE = 5;
+    private static final byte TYPE_STRING = 6;
+    private static final byte TYPE_MAP = 7;
+    private static final byte TYPE_LIST = 8;
+
+    // crc32 of the last payload written or read, -1 when unknown
+    private static long lastChecksum = -1;
+
+    private SettingsSnapshot() {
+    }
+
+    /**
+     * Persists the settings, unless the stored ones are identical.
+     */
+    static synchronized void write(Context context, ConstraintsMap settings) {
+        byte[] payload;
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+            DataOutputStream out = new DataOutputStream(bytes);
+            writeValue(out, settings.toMap());
+            out.flush();
+            payload = bytes.toByteArray();
+        } catch (IOException e) {
+            Log.w(TAG, "Could not encode the settings", e);
+            return;
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        long checksum = crc.getValue();
+        AtomicFile file = getFile(context);
+        if (lastChecksum == -1) {
+            lastChecksum = readChecksum(file);
+        }
+        if (checksum == lastChecksum) {
+            return;
+        }
+
+        FileOutputStream stream = null;
+        try {
+            stream = file.startWrite();
+            DataOutputStream out = new DataOutputStream(stream);
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            out.writeInt((int) checksum);
+            out.writeInt(payload.length);
+            out.write(payload);
+            out.flush();
+            file.finishWrite(stream);
+            lastChecksum = checksum;
+            Log.d(TAG, "Stored " + payload.length + " bytes of settings");
+        } catch (IOException e) {
+            Log.w(TAG, "Could not store the settings", e);
+            if (stream != null) {
+                file.failWrite(stream);
+            }
+        }
+    }
+
+    /**
+     * @return the stored settings, or null if there are none or they can not be read.
+     */
+    @Nullable
+    static synchronized ConstraintsMap read(Context context) {
+        AtomicFile file = getFile(context);
+        if (!file.getBaseFile().exists()) {
+            return null;
+        }
+        try {
+            byte[] data = file.readFully();
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+            if (data.length < HEADER_SIZE || in.readInt() != MAGIC || in.readByte() != VERSION) {
+                Log.w(TAG, "Ignoring settings stored in an unknown format");
+                return null;
+            }
+            long checksum = in.readInt() & 0xffffffffL;
+            int length = in.readInt();
+            if (length != data.length - HEADER_SIZE) {
+                Log.w(TAG, "Ignoring truncated settings");
+                return null;
+            }
+            CRC32 crc = new CRC32();
+            crc.update(data, HEADER_SIZE, length);
+            if (crc.getValue() != checksum) {
+                Log.w(TAG, "Ignoring corrupted settings");
+                return null;
+            }
+
+            Object value = readValue(in);
+            if (!(value instanceof Map)) {
+                return null;
+            }
+            lastChecksum = checksum;
+            return new ConstraintsMap((Map<String, Object>) value);
+        } catch (IOException e) {
+            Log.w(TAG, "Could not read the settings", e);
+            return null;
+        }
+    }
+
+    private static AtomicFile getFile(Context context) {
+        return new AtomicFile(new File(context.getApplicationContext().getFilesDir(), FILE_NAME));
+    }
+
+    private static long readChecksum(AtomicFile file) {
+        if (!file.getBaseFile().exists()) {
+            return -1;
+        }
+        try {
+            byte[] data = file.readFully();
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+            if (data.length < HEADER_SIZE || in.readInt() != MAGIC || in.readByte() != VERSION) {
+                return -1;
+            }
+            return in.readInt() & 0xffffffffL;
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    private static void writeValue(DataOutputStream out, Object value) throws IOException {
+        if (value instanceof Boolean) {
+            out.writeByte((Boolean) value ? TYPE_TRUE : TYPE_FALSE);
+        } else if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            out.writeByte(TYPE_INT);
+            out.writeInt(((Number) value).intValue());
+        } else if (value instanceof Long) {
+            out.writeByte(TYPE_LONG);
+            out.writeLong((Long) value);
+        } else if (value instanceof Number) {
+            out.writeByte(TYPE_DOUBLE);
+            out.writeDouble(((Number) value).doubleValue());
+        } else if (value instanceof String) {
+            out.writeByte(TYPE_STRING);
+            writeString(out, (String) value);
+        } else if (value instanceof Map) {
+            // Sorted, so that the same settings always encode to the same bytes
+            TreeMap<String, Object> sorted = new TreeMap<>();
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                sorted.put(String.valueOf(entry.getKey()), entry.getValue());
+            }
+            out.writeByte(TYPE_MAP);
+            out.writeInt(sorted.size());
+            for (Map.Entry<String, Object> entry : sorted.entrySet()) {
+                writeString(out, entry.getKey());
+                writeValue(out, entry.getValue());
+            }
+        } else if (value instanceof List) {
+            List<?> list = (List<?>) value;
+            out.writeByte(TYPE_LIST);
+            out.writeInt(list.size());
+            for (Object item : list) {
+                writeValue(out, item);
+            }
+        } else {
+            // Null, and values settings never hold such as byte arrays
+            out.writeByte(TYPE_NULL);
+        }
+    }
+
+    private static Object readValue(DataInputStream in) throws IOException {
+        byte type = in.readByte();
+        switch (type) {
+            case TYPE_NULL:
+                return null;
+            case TYPE_FALSE:
+                return false;
+            case TYPE_TRUE:
+                return true;
+            case TYPE_INT:
+                return in.readInt();
+            case TYPE_LONG:
+                return in.readLong();
+            case TYPE_DOUBLE:
+                return in.readDouble();
+            case TYPE_STRING:
+                return readString(in);
+            case TYPE_MAP:
+                int size = in.readInt();
+                HashMap<String, Object> map = new HashMap<>();
+                for (int i = 0; i < size; i++) {
+                    String key = readString(in);
+                    map.put(key, readValue(in));
+                }
+                return map;
+            case TYPE_LIST:
+                int count = in.readInt();
+                ArrayList<Object> list = new ArrayList<>();
+                for (int i = 0; i < count; i++) {
+                    list.add(readValue(in));
+                }
+                return list;
+            default:
+                throw new IOException("Unknown value type " + type);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) 2016-2019 The CallKeep Authors (see the AUTHORS file)
+ * SPDX-License-Identifier: ISC, MIT
+ *
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package io.wazo.callkeep;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import io.flutter.plugin.common.MethodChannel.Result;
+
+/**
+ * Runs the synchronous Telecom binder calls (placeCall, addNewIncomingCall,
+ * registerPhoneAccount...) off the platform thread.
+ *
+ * Tasks run one at a time on a dedicated thread, in submission order, so the operations on a
+ * call keep their order. Results are completed back on the main thread. When asynchronous
+ * mode is off the tasks run inline, as they used to, and the failure of a task submitted
+ * without a result is thrown to the caller.
+ */
+class TelecomExecutor {
+    private static final String TAG = "RNCK:TelecomExecutor";
+    static final String E_TELECOM = "E_TELECOM";
+
+    interface Task {
+        @Nullable
+        Object run() throws Exception;
+    }
+
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private Handler worker;
+    private volatile boolean async = true;
+
+    void setAsync(boolean value) {
+        Log.d(TAG, "setAsync: " + value);
+        async = value;
+    }
+
+    boolean isAsync() {
+        return async;
+    }
+
+    void execute(final Task task) {
+        execute(task, null);
+    }
+
+    void execute(final Task task, @Nullable final Result result) {
+        if (!async) {
+            run(task, result, false);
+            return;
+        }
+        getWorker().post(new Runnable() {
+            @Override
+            public void run() {
+                TelecomExecutor.this.run(task, result, true);
+            }
+        });
+    }
+
+    private void run(Task task, @Nullable final Result result, boolean postResult) {
+        Object value = null;
+        Exception failure = null;
+        try {
+            value = task.run();
+        } catch (Exception e) {
+            Log.w(TAG, "Telecom operation failed", e);
+            failure = e;
+        }
+        if (result == null) {
+            if (failure != null && !postResult) {
+                throw failure instanceof RuntimeException ? (RuntimeException) failure : new RuntimeException(failure);
+            }
+            return;
+        }
+
+        final Object success = value;
+        final Exception error = failure;
+        Runnable complete = new Runnable() {
+            @Override
+            public void run() {
+                if (error != null) {
+                    result.error(E_TELECOM, error.getMessage(), null);
+                } else {
+                    result.success(success);
+                }
+            }
+        };
+        if (postResult) {
+            mainHandler.post(complete);
+        } else {
+            complete.run();
+        }
+    }
+
+    /**
+     * Stops the worker thread once the tasks already submitted ran. A later task starts a new one.
+     */
+    synchronized void shutdown() {
+        if (worker == null) {
+            return;
+        }
+        worker.getLooper().quitSafely();
+        worker = null;
+    }
+
+    private synchronized Handler getWorker() {
+        if (worker == null) {
+            HandlerThread thread = new HandlerThread("CallKeepTelecom");
+            thread.start();
+            worker = new Handler(thread.getLooper());
+        }
+        return worker;
+    }
+}
@@ -0,0 +1,258 @@
+/*
+ * Copyright (c) 2016-2019 The CallKeep Authors (see the AUTHORS file)
+ * SPDX-License-Identifier: ISC, MIT
+ *
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package io.wazo.callkeep;
+
+import java.util.ArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hashed timer wheel for the per-call timeouts: ringing, dialing and reachability.
+ *
+ * Timeouts are linked in the bucket of their deadline tick, so scheduling and cancelling are
+ * O(1) whatever the number of pending timeouts. One thread advances the wheel, sleeping until
+ * the earliest deadline rather than waking at every tick, and hands expired tasks to the
+ * dispatcher. A timeout cancelled after it
+ * expired but before its task ran does not run.
+ *
+ * Built with a {@link Clock} and no thread, the wheel only moves on {@link #advance()}, so it
+ * can be driven deterministically on the JVM.
+ */
+final class TimerWheel {
+    private static final long DEFAULT_TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(20);
+    private static final int DEFAULT_WHEEL_SIZE = 512;
+
+    interface Clock {
+        long nanoTime();
+    }
+
+    static final Clock SYSTEM_CLOCK = System::nanoTime;
+
+    private static final int PENDING = 0;
+    private static final int EXPIRED = 1;
+    private static final int DONE = 2;
+
+    final class Timeout implements Runnable {
+        private final Runnable task;
+        private final long deadlineTick;
+        private long rounds;
+        private int state = PENDING;
+        private Timeout prev;
+        private Timeout next;
+
+        private Timeout(Runnable task, long deadlineTick, long rounds) {
+            this.task = task;
+            this.deadlineTick = deadlineTick;
+            this.rounds = rounds;
+        }
+
+        /**
+         * @return false when the task already ran or was cancelled.
+         */
+        boolean cancel() {
+            return TimerWheel.this.cancel(this);
+        }
+
+        @Override
+        public void run() {
+            synchronized (TimerWheel.this) {
+                if (state != EXPIRED) {
+                    return;
+                }
+                state = DONE;
+            }
+            task.run();
+        }
+    }
+
+    private final Clock clock;
+    private final Executor dispatcher;
+    private final long tickNanos;
+    private final int mask;
+    private final Timeout[] buckets;
+    private final long startNanos;
+    private final boolean threaded;
+    private Thread worker;
+    // Next tick to process
+    private long tick = 0;
+    private int size = 0;
+
+    /**
+     * A wheel with its own thread, running expired tasks with the dispatcher.
+     */
+    TimerWheel(Executor dispatcher) {
+        this(SYSTEM_CLOCK, DEFAULT_TICK_NANOS, DEFAULT_WHEEL_SIZE, dispatcher, true);
+    }
+
+    /**
+     * A wheel without thread, that only moves when {@link #advance()} is called.
+     *
+     * @param wheelSize a power of two.
+     */
+    TimerWheel(Clock clock, long tickNanos, int wheelSize, Executor dispatcher) {
+        this(clock, tickNanos, wheelSize, dispatcher, false);
+    }
+
+    private TimerWheel(Clock clock, long tickNanos, int wheelSize, Executor dispatcher, boolean threaded) {
+        if (tickNanos <= 0 || wheelSize <= 0 || (wheelSize & (wheelSize - 1)) != 0) {
+            throw new IllegalArgumentException("Invalid tick " + tickNanos + " or wheel size " + wheelSize);
+        }
+        this.clock = clock;
+        this.dispatcher = dispatcher;
+        this.tickNanos = tickNanos;
+        this.mask = wheelSize - 1;
+        this.buckets = new Timeout[wheelSize];
+        this.startNanos = clock.nanoTime();
+        this.threaded = threaded;
+    }
+
+    /**
+     * Runs the task after the delay, rounded up to the next tick.
+     */
+    synchronized Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        long now = currentTick();
+        if (size == 0 && tick < now) {
+            // Nothing to expire in between, skip the idle ticks
+            tick = now;
+        }
+        long deadlineNanos = clock.nanoTime() - startNanos + Math.max(0, unit.toNanos(delay));
+        long deadlineTick = Math.max(tick, (deadlineNanos + tickNanos - 1) / tickNanos);
+        Timeout timeout = new Timeout(task, deadlineTick, (deadlineTick - tick) / buckets.length);
+
+        int index = (int) (deadlineTick & mask);
+        timeout.next = buckets[index];
+        if (timeout.next != null) {
+            timeout.next.prev = timeout;
+        }
+        buckets[index] = timeout;
+        size++;
+
+        if (threaded) {
+            startWorker();
+        }
+        notifyAll();
+        return timeout;
+    }
+
+    synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Expires the timeouts due at the current clock time and dispatches their tasks.
+     */
+    void advance() {
+        ArrayList<Timeout> expired = null;
+        synchronized (this) {
+            long now = currentTick();
+            while (tick <= now) {
+                int index = (int) (tick & mask);
+                Timeout timeout = buckets[index];
+                while (timeout != null) {
+                    Timeout next = timeout.next;
+                    if (timeout.rounds <= 0) {
+                        unlink(timeout, index);
+                        timeout.state = EXPIRED;
+                        if (expired == null) {
+                            expired = new ArrayList<>();
+                        }
+                        expired.add(timeout);
+                    } else {
+                        timeout.rounds--;
+                    }
+                    timeout = next;
+                }
+                tick++;
+            }
+        }
+        if (expired != null) {
+            for (Timeout timeout : expired) {
+                dispatcher.execute(timeout);
+            }
+        }
+    }
+
+    private synchronized boolean cancel(Timeout timeout) {
+        if (timeout.state == PENDING) {
+            unlink(timeout, (int) (timeout.deadlineTick & mask));
+        } else if (timeout.state != EXPIRED) {
+            return false;
+        }
+        timeout.state = DONE;
+        return true;
+    }
+
+    private void unlink(Timeout timeout, int index) {
+        if (timeout.prev != null) {
+            timeout.prev.next = timeout.next;
+        } else {
+            buckets[index] = timeout.next;
+        }
+        if (timeout.next != null) {
+            timeout.next.prev = timeout.prev;
+        }
+        timeout.prev = null;
+        timeout.next = null;
+        size--;
+    }
+
+    private long currentTick() {
+        return (clock.nanoTime() - startNanos) / tickNanos;
+    }
+
+    private void startWorker() {
+        if (worker != null) {
+            return;
+        }
+        worker = new Thread(this::loop, "CallKeepTimers");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    // Scans the whole wheel, only done when the worker goes to sleep
+    private long earliestDeadlineTick() {
+        long earliest = Long.MAX_VALUE;
+        for (Timeout head : buckets) {
+            for (Timeout timeout = head; timeout != null; timeout = timeout.next) {
+                earliest = Math.min(earliest, timeout.deadlineTick);
+            }
+        }
+        return earliest;
+    }
+
+    private void loop() {
+        try {
+            while (true) {
+                synchronized (this) {
+                    while (size == 0) {
+                        wait();
+                    }
+                    // Woken up early by schedule() when an earlier timeout comes in
+                    long sleepNanos = startNanos + Math.max(tick, earliestDeadlineTick()) * tickNanos - clock.nanoTime();
+                    if (sleepNanos > 0) {
+                        TimeUnit.NANOSECONDS.timedWait(this, sleepNanos);
+                        continue;
+                    }
+                }
+                advance();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
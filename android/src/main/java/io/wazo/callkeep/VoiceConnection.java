@@ -19,11 +19,9 @@ package io.wazo.callkeep;
 
 import android.annotation.TargetApi;
 import android.content.Context;
-import android.content.Intent;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
-import android.os.Handler;
 import android.telecom.CallAudioState;
 import android.telecom.Connection;
 import android.telecom.DisconnectCause;
@@ -31,10 +29,11 @@ import android.telecom.TelecomManager;
 import android.util.Log;
 
 import androidx.annotation.Nullable;
-import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 
 import java.util.HashMap;
 
+import io.wazo.callkeep.notification.CallNotificationService;
+
 import static io.wazo.callkeep.Constants.*;
 
 @TargetApi(Build.VERSION_CODES.M)
@@ -73,6 +72,16 @@ public class VoiceConnection extends Connection {
         }
     }
 
+    @Override
+    public void onStateChanged(int state) {
+        super.onStateChanged(state);
+        VoiceConnectionService.callRegistry.updateState(getCallUUID(), state);
+    }
+
+    public String getCallUUID() {
+        return handle.get(EXTRA_CALL_UUID);
+    }
+
     @Override
     public void onCallAudioStateChanged(CallAudioState state) {
         if (state.isMuted() == this.isMuted) {
@@ -97,6 +106,8 @@ public class VoiceConnection extends Connection {
 
         setConnectionCapabilities(getConnectionCapabilities() | Connection.CAPABILITY_HOLD);
         setAudioModeIsVoip(true);
+        VoiceConnectionService.cancelCallTimeout(getCallUUID());
+        CallNotificationService.dismiss(context, getCallUUID());
 
         sendCallRequestToActivity(ACTION_ANSWER_CALL, handle);
         sendCallRequestToActivity(ACTION_AUDIO_SESSION, handle);
@@ -105,12 +116,7 @@ public class VoiceConnection extends Connection {
 
     @Override
     public void onPlayDtmfTone(char dtmf) {
-        try {
-            handle.put("DTMF", Character.toString(dtmf));
-        } catch (Throwable exception) {
-            Log.e(TAG, "Handle map error", exception);
-        }
-        sendCallRequestToActivity(ACTION_DTMF_TONE, handle);
+        sendCallRequestToActivity(CallEvent.of(ACTION_DTMF_TONE, handle).withDigits(Character.toString(dtmf)));
     }
 
     @Override
@@ -127,6 +133,15 @@ public class VoiceConnection extends Connection {
         destroy();
     }
 
+    /**
+     * Ends a call that rang or dialed for too long, telling Dart it ended.
+     */
+    void onTimeout(int reason) {
+        Log.d(TAG, "onTimeout: " + getCallUUID() + ", reason: " + reason);
+        sendCallRequestToActivity(ACTION_END_CALL, handle);
+        reportDisconnect(reason);
+    }
+
     public void reportDisconnect(int reason) {
         super.onDisconnect();
         switch (reason) {
@@ -198,21 +213,11 @@ public class VoiceConnection extends Connection {
     /*
      * Send call request to the RNCallKeepModule
      */
-    private void sendCallRequestToActivity(final String action, @Nullable final HashMap attributeMap) {
-        final VoiceConnection instance = this;
-        final Handler handler = new Handler();
-
-        handler.post(new Runnable() {
-            @Override
-            public void run() {
-                Intent intent = new Intent(action);
-                if (attributeMap != null) {
-                    Bundle extras = new Bundle();
-                    extras.putSerializable("attributeMap", attributeMap);
-                    intent.putExtras(extras);
-                }
-                LocalBroadcastManager.getInstance(context).sendBroadcast(intent);
-            }
-        });
+    private void sendCallRequestToActivity(final String action, @Nullable final HashMap<String, String> attributeMap) {
+        sendCallRequestToActivity(CallEvent.of(action, attributeMap));
+    }
+
+    private void sendCallRequestToActivity(CallEvent event) {
+        CallEventBus.post(context, event);
     }
 }
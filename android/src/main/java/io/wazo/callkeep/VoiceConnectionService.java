@@ -18,19 +18,14 @@
 package io.wazo.callkeep;
 
 import android.annotation.TargetApi;
-import android.app.ActivityManager;
-import android.app.ActivityManager.RunningTaskInfo;
-import android.app.Notification;
-import android.app.NotificationChannel;
-import android.app.NotificationManager;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
-import android.content.res.Resources;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.Looper;
 import android.telecom.Connection;
 import android.telecom.ConnectionRequest;
 import android.telecom.ConnectionService;
@@ -41,21 +36,19 @@ import android.telecom.TelecomManager;
 import android.util.Log;
 
 import androidx.annotation.Nullable;
-import androidx.annotation.RequiresApi;
-import androidx.core.app.NotificationCompat;
-import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 
-import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
-import java.util.List;
-import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 
+import io.wazo.callkeep.notification.CallNotificationService;
+import io.wazo.callkeep.notification.CallRingtone;
 import io.wazo.callkeep.utils.ConstraintsMap;
 import static io.wazo.callkeep.Constants.*;
-import static io.wazo.callkeep.Constants.FOREGROUND_SERVICE_TYPE_MICROPHONE;
 
 // @see https://github.com/kbagchiGWC/voice-quickstart-android/blob/9a2aff7fbe0d0a5ae9457b48e9ad408740dfb968/exampleConnectionService/src/main/java/com/twilio/voice/examples/connectionservice/VoiceConnectionService.java
 @TargetApi(Build.VERSION_CODES.M)
@@ -67,16 +60,26 @@ public class VoiceConnectionService extends ConnectionService {
     private static ConnectionRequest currentConnectionRequest;
     private static PhoneAccountHandle phoneAccountHandle = null;
     private static String TAG = "RNCK:VoiceConnectionService";
-    public static Map<String, VoiceConnection> currentConnections = new HashMap<>();
+    public static final CallRegistry callRegistry = new CallRegistry();
+    private static final ConferenceGraph conferenceGraph = new ConferenceGraph();
+    static final PhoneAccountCache phoneAccounts = new PhoneAccountCache();
+    static final ForegroundServiceController foregroundService = new ForegroundServiceController();
+    private static final Handler mainHandler = new Handler(Looper.getMainLooper());
+    static final TimerWheel timers = new TimerWheel(mainHandler::post);
+    static final ReachabilityTimeout reachability = new ReachabilityTimeout(timers);
+    static final WakeLockLeases wakeLocks = new WakeLockLeases(timers);
+    // Ring and dial timeouts by call uuid, main thread only
+    private static final HashMap<String, TimerWheel.Timeout> callTimeouts = new HashMap<>();
+    // Incoming calls added to Telecom that must end as soon as their connection exists
+    private static final Set<String> abandonedCalls = Collections.synchronizedSet(new HashSet<String>());
     public static Boolean hasOutgoingCall = false;
     public static VoiceConnectionService currentConnectionService = null;
-    public static ConstraintsMap _settings = null;
+    // Replaced as a whole by setup(), so the service only ever reads a complete config
+    private static volatile CallKeepConfig config = CallKeepConfig.EMPTY;
+    private static boolean storedConfigLoaded = false;
 
     public static Connection getConnection(String connectionId) {
-        if (currentConnections.containsKey(connectionId)) {
-            return currentConnections.get(connectionId);
-        }
-        return null;
+        return callRegistry.get(connectionId);
     }
 
     public VoiceConnectionService() {
@@ -102,12 +105,43 @@ public class VoiceConnectionService extends ConnectionService {
         isAvailable = value;
     }
 
-    public static void setSettings(ConstraintsMap settings) {
-        _settings = settings;
+    public static void setConfig(CallKeepConfig value) {
+        config = value;
+    }
+
+    public static CallKeepConfig getConfig() {
+        return config;
+    }
+
+    /**
+     * @return the config given to setup() or, when the process was started without running
+     * setup() yet, the one stored by a previous run.
+     */
+    public static CallKeepConfig getConfig(Context context) {
+        CallKeepConfig current = config;
+        if (current != CallKeepConfig.EMPTY) {
+            return current;
+        }
+        synchronized (VoiceConnectionService.class) {
+            if (config == CallKeepConfig.EMPTY && !storedConfigLoaded) {
+                storedConfigLoaded = true;
+                ConstraintsMap stored = SettingsSnapshot.read(context);
+                if (stored != null) {
+                    try {
+                        config = CallKeepConfig.compile(context, stored);
+                        Log.d(TAG, "Loaded the stored config");
+                    } catch (IllegalArgumentException e) {
+                        Log.w(TAG, "Ignoring the stored config: " + e.getMessage());
+                    }
+                }
+            }
+            return config;
+        }
     }
 
     public static void setReachable() {
         Log.d(TAG, "setReachable");
+        reachability.onReachable();
         isReachable = true;
         VoiceConnectionService.currentConnectionRequest = null;
     }
@@ -116,27 +150,98 @@ public class VoiceConnectionService extends ConnectionService {
         Log.d(TAG, "deinitConnection:" + connectionId);
         VoiceConnectionService.hasOutgoingCall = false;
 
-        currentConnectionService.stopForegroundService();
+        if (currentConnectionService != null) {
+            foregroundService.release(currentConnectionService, connectionId);
+            CallNotificationService.dismiss(currentConnectionService, connectionId);
+        } else {
+            CallRingtone.stop(connectionId);
+        }
 
-        if (currentConnections.containsKey(connectionId)) {
-            currentConnections.remove(connectionId);
+        cancelCallTimeout(connectionId);
+        wakeLocks.release(connectionId);
+        IncomingCallLauncher.forgetCall(connectionId);
+        callRegistry.remove(connectionId);
+        conferenceGraph.remove(connectionId);
+    }
+
+    /**
+     * Ends the call with the given reason after the delay, unless cancelled first.
+     */
+    static void scheduleCallTimeout(final String uuid, int delayMs, final int reason) {
+        cancelCallTimeout(uuid);
+        if (delayMs <= 0 || uuid == null) {
+            return;
+        }
+        callTimeouts.put(uuid, timers.schedule(() -> {
+            callTimeouts.remove(uuid);
+            Connection conn = getConnection(uuid);
+            if (conn instanceof VoiceConnection && isNotConnected(conn.getState())) {
+                ((VoiceConnection) conn).onTimeout(reason);
+            }
+        }, delayMs, TimeUnit.MILLISECONDS));
+    }
+
+    // setInitialized() moves a ringing or dialing connection back to STATE_NEW
+    private static boolean isNotConnected(int state) {
+        return state == Connection.STATE_RINGING || state == Connection.STATE_DIALING || state == Connection.STATE_NEW;
+    }
+
+    /**
+     * Fails an incoming call already added to Telecom, whether or not its connection is created
+     * yet. Can be called from any thread.
+     */
+    static void abandonIncomingCall(final String uuid) {
+        abandonedCalls.add(uuid);
+        // Connections are created on the main thread, checking there cannot miss one
+        mainHandler.post(() -> {
+            Connection conn = getConnection(uuid);
+            if (conn instanceof VoiceConnection && abandonedCalls.remove(uuid)) {
+                ((VoiceConnection) conn).onTimeout(DISCONNECT_REASON_FAILED);
+            }
+        });
+    }
+
+    static void cancelCallTimeout(String uuid) {
+        TimerWheel.Timeout timeout = callTimeouts.remove(uuid);
+        if (timeout != null) {
+            timeout.cancel();
         }
     }
 
     @Override
     public Connection onCreateIncomingConnection(PhoneAccountHandle connectionManagerPhoneAccount, ConnectionRequest request) {
         Bundle extra = request.getExtras();
+        if (abandonedCalls.remove(extra.getString(EXTRA_CALL_UUID))) {
+            Log.w(TAG, "onCreateIncomingConnection: " + extra.getString(EXTRA_CALL_UUID) + " was abandoned");
+            return Connection.createFailedConnection(new DisconnectCause(DisconnectCause.ERROR));
+        }
         Uri number = request.getAddress();
         String name = extra.getString(EXTRA_CALLER_NAME);
         Connection incomingCallConnection = createConnection(request);
         incomingCallConnection.setRinging();
         incomingCallConnection.setInitialized();
 
-        startForegroundService();
+        foregroundService.acquire(this, extra.getString(EXTRA_CALL_UUID));
+        scheduleCallTimeout(extra.getString(EXTRA_CALL_UUID), getConfig().ringTimeoutMs, DISCONNECT_REASON_MISSED);
+
+        // Let an attached engine adopt a call displayed natively, it is announced on attach otherwise
+        if (IncomingCallLauncher.isUnannounced(extra.getString(EXTRA_CALL_UUID))) {
+            sendCallRequestToActivity(ACTION_NATIVE_INCOMING_CALL, null);
+        }
 
         return incomingCallConnection;
     }
 
+    @Override
+    public void onCreateIncomingConnectionFailed(PhoneAccountHandle connectionManagerPhoneAccount, ConnectionRequest request) {
+        super.onCreateIncomingConnectionFailed(connectionManagerPhoneAccount, request);
+        String uuid = request.getExtras().getString(EXTRA_CALL_UUID);
+        Log.w(TAG, "onCreateIncomingConnectionFailed: " + uuid);
+        abandonedCalls.remove(uuid);
+        IncomingCallLauncher.forgetCall(uuid);
+        CallNotificationService.dismiss(this, uuid);
+    }
+
     @Override
     public Connection onCreateOutgoingConnection(PhoneAccountHandle connectionManagerPhoneAccount, ConnectionRequest request) {
         VoiceConnectionService.hasOutgoingCall = true;
@@ -157,32 +262,39 @@ public class VoiceConnectionService extends ConnectionService {
         String number = request.getAddress().getSchemeSpecificPart();
         String extrasNumber = extras.getString(EXTRA_CALL_NUMBER);
         String displayName = extras.getString(EXTRA_CALLER_NAME);
-        Boolean isForeground = VoiceConnectionService.isRunning(this.getApplicationContext());
+        Boolean isForeground = AppVisibilityTracker.isRunning();
 
         Log.d(TAG, "makeOutgoingCall:" + uuid + ", number: " + number + ", displayName:" + displayName);
 
+        // TODO: Hold all other calls
+        if (extrasNumber == null || !extrasNumber.equals(number)) {
+            extras.putString(EXTRA_CALL_UUID, uuid);
+            extras.putString(EXTRA_CALLER_NAME, displayName);
+            extras.putString(EXTRA_CALL_NUMBER, number);
+        }
+        // Calls placed with startCall() keep the uuid given by Dart
+        String callUuid = extras.getString(EXTRA_CALL_UUID);
+        if (request == currentConnectionRequest) {
+            // Woken up with the same uuid if setReachable() does not come
+            notReachableCallUuid = callUuid;
+        }
+
         // Wakeup application if needed
         if (!isForeground || forceWakeUp) {
             Log.d(TAG, "onCreateOutgoingConnection: Waking up application");
-            this.wakeUpApplication(uuid, number, displayName);
+            this.wakeUpApplication(callUuid, number, displayName);
         } else if (!this.canMakeOutgoingCall() && isReachable) {
             Log.d(TAG, "onCreateOutgoingConnection: not available");
             return Connection.createFailedConnection(new DisconnectCause(DisconnectCause.LOCAL));
         }
 
-        // TODO: Hold all other calls
-        if (extrasNumber == null || !extrasNumber.equals(number)) {
-            extras.putString(EXTRA_CALL_UUID, uuid);
-            extras.putString(EXTRA_CALLER_NAME, displayName);
-            extras.putString(EXTRA_CALL_NUMBER, number);
-        }
-
         outgoingCallConnection = createConnection(request);
         outgoingCallConnection.setDialing();
         outgoingCallConnection.setAudioModeIsVoip(true);
         outgoingCallConnection.setCallerDisplayName(displayName, TelecomManager.PRESENTATION_ALLOWED);
 
-        startForegroundService();
+        foregroundService.acquire(this, callUuid);
+        scheduleCallTimeout(callUuid, getConfig().dialTimeoutMs, DISCONNECT_REASON_UNANSWERED);
 
         // ‍️Weirdly on some Samsung phones (A50, S9...) using `setInitialized` will not display the native UI ...
         // when making a call from the native Phone application. The call will still be displayed correctly without it.
@@ -206,64 +318,6 @@ public class VoiceConnectionService extends ConnectionService {
         isInitialized = value;
     }
 
-    private void startForegroundService() {
-        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O) {
-            // Foreground services not required before SDK 28
-            return;
-        }
-        Log.d(TAG, "[VoiceConnectionService] startForegroundService");
-        if (_settings == null || !_settings.hasKey("foregroundService")) {
-            Log.w(TAG, "[VoiceConnectionService] Not creating foregroundService because not configured");
-            return;
-        }
-        ConstraintsMap foregroundSettings = _settings.getMap("foregroundService");
-        String NOTIFICATION_CHANNEL_ID = foregroundSettings.getString("channelId");
-        String channelName = foregroundSettings.getString("channelName");
-        NotificationChannel chan = new NotificationChannel(NOTIFICATION_CHANNEL_ID, channelName, NotificationManager.IMPORTANCE_NONE);
-        chan.setLockscreenVisibility(Notification.VISIBILITY_PRIVATE);
-        NotificationManager manager = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
-        assert manager != null;
-        manager.createNotificationChannel(chan);
-
-        NotificationCompat.Builder notificationBuilder = new NotificationCompat.Builder(this, NOTIFICATION_CHANNEL_ID);
-        notificationBuilder.setOngoing(true)
-                .setContentTitle(foregroundSettings.getString("notificationTitle"))
-                .setPriority(NotificationManager.IMPORTANCE_MIN)
-                .setCategory(Notification.CATEGORY_SERVICE);
-        
-        if (foregroundSettings.hasKey("notificationIcon")) {
-            Context context = this.getApplicationContext();
-            Resources res = context.getResources();
-            String smallIcon = foregroundSettings.getString("notificationIcon");
-            String mipmap = "mipmap/";
-            String drawable = "drawable/";
-            if (smallIcon.contains(mipmap)) {
-                notificationBuilder.setSmallIcon(
-                        res.getIdentifier(smallIcon.replace(mipmap, ""),
-                                "mipmap", context.getPackageName()));
-            } else if (smallIcon.contains(drawable)) {
-                notificationBuilder.setSmallIcon(
-                        res.getIdentifier(smallIcon.replace(drawable, ""),
-                                "drawable", context.getPackageName()));
-            }
-        }
-
-        Log.d(TAG, "[VoiceConnectionService] Starting foreground service");
-
-        Notification notification = notificationBuilder.build();
-        startForeground(FOREGROUND_SERVICE_TYPE_MICROPHONE, notification);
-    }
-
-    @RequiresApi(api = Build.VERSION_CODES.N)
-    private void stopForegroundService() {
-        Log.d(TAG, "[VoiceConnectionService] stopForegroundService");
-        if (_settings == null || !_settings.hasKey("foregroundService")) {
-            Log.d(TAG, "[VoiceConnectionService] Discarding stop foreground service, no service configured");
-            return;
-        }
-        stopForeground(FOREGROUND_SERVICE_TYPE_MICROPHONE);
-    }
-
     private void wakeUpApplication(String uuid, String number, String displayName) {
         Intent headlessIntent = new Intent(
             this.getApplicationContext(),
@@ -276,7 +330,7 @@ public class VoiceConnectionService extends ConnectionService {
 
         ComponentName name = this.getApplicationContext().startService(headlessIntent);
         if (name != null) {
-            CallKeepBackgroundMessagingService.acquireWakeLockNow(this.getApplicationContext());
+            CallKeepBackgroundMessagingService.acquireWakeLock(this.getApplicationContext(), uuid);
         }
     }
 
@@ -299,12 +353,7 @@ public class VoiceConnectionService extends ConnectionService {
         final VoiceConnectionService instance = this;
         sendCallRequestToActivity(ACTION_CHECK_REACHABILITY, null);
 
-        new android.os.Handler().postDelayed(
-            new Runnable() {
-                public void run() {
-                    instance.wakeUpAfterReachabilityTimeout(instance.currentConnectionRequest);
-                }
-            }, 2000);
+        reachability.start(getConfig(), () -> instance.wakeUpAfterReachabilityTimeout(instance.currentConnectionRequest));
     }
 
     private Boolean canMakeOutgoingCall() {
@@ -320,10 +369,10 @@ public class VoiceConnectionService extends ConnectionService {
 
             Context context = getApplicationContext();
             TelecomManager telecomManager = (TelecomManager) context.getSystemService(context.TELECOM_SERVICE);
-            PhoneAccount phoneAccount = telecomManager.getPhoneAccount(request.getAccountHandle());
+            int capabilities = phoneAccounts.getCapabilities(telecomManager, request.getAccountHandle());
 
             //If the phone account is self managed, then this connection must also be self managed.
-            if((phoneAccount.getCapabilities() & PhoneAccount.CAPABILITY_SELF_MANAGED) == PhoneAccount.CAPABILITY_SELF_MANAGED) {
+            if((capabilities & PhoneAccount.CAPABILITY_SELF_MANAGED) == PhoneAccount.CAPABILITY_SELF_MANAGED) {
                 Log.d(TAG, "[VoiceConnectionService] PhoneAccount is SELF_MANAGED, so connection will be too");
                 if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N_MR1) {
                     connection.setConnectionProperties(Connection.PROPERTY_SELF_MANAGED);
@@ -335,17 +384,10 @@ public class VoiceConnectionService extends ConnectionService {
 
         connection.setInitializing();
         connection.setExtras(extras);
-        currentConnections.put(extras.getString(EXTRA_CALL_UUID), connection);
+        callRegistry.put(extras.getString(EXTRA_CALL_UUID), connection, request.getAddress().getSchemeSpecificPart());
 
-        // Get other connections for conferencing
-        Map<String, VoiceConnection> otherConnections = new HashMap<>();
-        for (Map.Entry<String, VoiceConnection> entry : currentConnections.entrySet()) {
-            if(!(extras.getString(EXTRA_CALL_UUID).equals(entry.getKey()))) {
-                otherConnections.put(entry.getKey(), entry.getValue());
-            }
-        }
-        List<Connection> conferenceConnections = new ArrayList<Connection>(otherConnections.values());
-        connection.setConferenceableConnections(conferenceConnections);
+        // Make it conferenceable with the other connections, and them with it
+        conferenceGraph.add(extras.getString(EXTRA_CALL_UUID), connection);
 
         return connection;
     }
@@ -369,22 +411,8 @@ public class VoiceConnectionService extends ConnectionService {
     /*
      * Send call request to the RNCallKeepModule
      */
-    private void sendCallRequestToActivity(final String action, @Nullable final HashMap attributeMap) {
-        final VoiceConnectionService instance = this;
-        final Handler handler = new Handler();
-
-        handler.post(new Runnable() {
-            @Override
-            public void run() {
-                Intent intent = new Intent(action);
-                if (attributeMap != null) {
-                    Bundle extras = new Bundle();
-                    extras.putSerializable("attributeMap", attributeMap);
-                    intent.putExtras(extras);
-                }
-                LocalBroadcastManager.getInstance(instance).sendBroadcast(intent);
-            }
-        });
+    private void sendCallRequestToActivity(final String action, @Nullable final HashMap<String, String> attributeMap) {
+        CallEventBus.post(this, CallEvent.of(action, attributeMap));
     }
 
     private HashMap<String, String> bundleToMap(Bundle extras) {
@@ -402,20 +430,12 @@ public class VoiceConnectionService extends ConnectionService {
     }
 
     /**
-     * https://stackoverflow.com/questions/5446565/android-how-do-i-check-if-activity-is-running
-     *
-     * @param context Context
-     * @return boolean
+     * @param context unused, the visibility is tracked from the activity lifecycle callbacks.
+     * @return whether the app has an activity, visible or not.
+     * @deprecated use {@link AppVisibilityTracker#isRunning()}.
      */
+    @Deprecated
     public static boolean isRunning(Context context) {
-        ActivityManager activityManager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
-        List<RunningTaskInfo> tasks = activityManager.getRunningTasks(Integer.MAX_VALUE);
-
-        for (RunningTaskInfo task : tasks) {
-            if (context.getPackageName().equalsIgnoreCase(task.baseActivity.getPackageName()))
-                return true;
-        }
-
-        return false;
+        return AppVisibilityTracker.isRunning();
     }
 }
@@ -0,0 +1,177 @@
+/*
+ * Copyright (c) 2016-2019 The CallKeep Authors (see the AUTHORS file)
+ * SPDX-License-Identifier: ISC, MIT
+ *
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package io.wazo.callkeep;
+
+import android.content.Context;
+import android.os.PowerManager;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import io.wazo.callkeep.utils.ConstraintsMap;
+
+/**
+ * Partial wake lock shared by the calls that wake the app up, through leases.
+ *
+ * Each call holds at most one lease, which ends when the call ends or after its maximum
+ * duration. The lock is held while a lease is active, and is acquired with a timeout covering
+ * the longest lease so the system releases it even if the process never does. Held time is
+ * accounted per call.
+ */
+class WakeLockLeases {
+    private static final String TAG = "RNCK:WakeLockLeases";
+    // Per-call held times kept for the metrics
+    private static final int RECENT_CALLS = 32;
+
+    /* An active lease */
+    private static final class Lease {
+        final long acquiredAt;
+        final long expiresAt;
+        final TimerWheel.Timeout expiry;
+
+        Lease(long acquiredAt, long expiresAt, TimerWheel.Timeout expiry) {
+            this.acquiredAt = acquiredAt;
+            this.expiresAt = expiresAt;
+            this.expiry = expiry;
+        }
+    }
+
+    private final TimerWheel timers;
+    private final HashMap<String, Lease> leases = new HashMap<>();
+    private final LinkedHashMap<String, Object> heldMsByCall = new LinkedHashMap<String, Object>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Object> eldest) {
+            return size() > RECENT_CALLS;
+        }
+    };
+    @Nullable
+    private PowerManager.WakeLock wakeLock;
+    private long lockAcquiredAt = 0;
+
+    private int acquired = 0;
+    private int expired = 0;
+    private long leaseHeldMs = 0;
+    private long lockHeldMs = 0;
+
+    WakeLockLeases(TimerWheel timers) {
+        this.timers = timers;
+    }
+
+    /**
+     * Holds the wake lock for the call, for at most the given duration. A lease already held by
+     * the call is replaced.
+     */
+    synchronized void acquire(Context context, final String uuid, long maxDurationMs) {
+        // Replaced without letting go of the lock
+        endLease(uuid, false, false);
+
+        long now = SystemClock.elapsedRealtime();
+        TimerWheel.Timeout expiry = timers.schedule(() -> onExpired(uuid), maxDurationMs, TimeUnit.MILLISECONDS);
+        leases.put(uuid, new Lease(now, now + maxDurationMs, expiry));
+        acquired++;
+
+        if (wakeLock == null) {
+            PowerManager powerManager = (PowerManager) context.getApplicationContext().getSystemService(Context.POWER_SERVICE);
+            wakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, CallKeepBackgroundMessagingService.class.getCanonicalName());
+            wakeLock.setReferenceCounted(false);
+        }
+        if (lockAcquiredAt == 0) {
+            lockAcquiredAt = now;
+        }
+        // Re-arms the system timeout
+        wakeLock.acquire(latestExpiry() - now);
+        Log.d(TAG, "acquire: " + uuid + " for " + maxDurationMs + "ms, active leases: " + leases.size());
+    }
+
+    synchronized void release(String uuid) {
+        endLease(uuid, false, true);
+    }
+
+    synchronized void releaseAll() {
+        for (String uuid : leases.keySet().toArray(new String[0])) {
+            endLease(uuid, false, true);
+        }
+    }
+
+    synchronized ConstraintsMap getMetrics() {
+        long now = SystemClock.elapsedRealtime();
+        ConstraintsMap metrics = new ConstraintsMap();
+        metrics.putBoolean("held", wakeLock != null && wakeLock.isHeld());
+        metrics.putInt("activeLeases", leases.size());
+        metrics.putInt("leases", acquired);
+        metrics.putInt("expired", expired);
+        metrics.putDouble("leaseHeldMs", leaseHeldMs);
+        metrics.putDouble("lockHeldMs", lockHeldMs + (lockAcquiredAt != 0 ? now - lockAcquiredAt : 0));
+
+        HashMap<String, Object> calls = new HashMap<>(heldMsByCall);
+        for (Map.Entry<String, Lease> entry : leases.entrySet()) {
+            calls.put(entry.getKey(), (double) (now - entry.getValue().acquiredAt));
+        }
+        metrics.putMap("heldMsByCall", calls);
+        return metrics;
+    }
+
+    private synchronized void onExpired(String uuid) {
+        if (leases.containsKey(uuid)) {
+            Log.w(TAG, "Lease of " + uuid + " expired");
+            endLease(uuid, true, true);
+        }
+    }
+
+    private void endLease(String uuid, boolean expiredLease, boolean releaseLock) {
+        Lease lease = leases.remove(uuid);
+        if (lease == null) {
+            return;
+        }
+        if (!expiredLease) {
+            lease.expiry.cancel();
+        } else {
+            expired++;
+        }
+
+        long now = SystemClock.elapsedRealtime();
+        long heldMs = Math.min(now, lease.expiresAt) - lease.acquiredAt;
+        leaseHeldMs += heldMs;
+        heldMsByCall.remove(uuid);
+        heldMsByCall.put(uuid, (double) heldMs);
+
+        if (!releaseLock || !leases.isEmpty() || lockAcquiredAt == 0) {
+            return;
+        }
+        if (wakeLock != null && wakeLock.isHeld()) {
+            wakeLock.release();
+            Log.d(TAG, "Released the wake lock");
+        }
+        lockHeldMs += now - lockAcquiredAt;
+        lockAcquiredAt = 0;
+    }
+
+    private long latestExpiry() {
+        long latest = 0;
+        for (Lease lease : leases.values()) {
+            latest = Math.max(latest, lease.expiresAt);
+        }
+        return latest;
+    }
+}
@@ -0,0 +1,281 @@
+package io.wazo.callkeep.notification;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.media.AudioAttributes;
+import android.media.AudioManager;
+import android.media.MediaPlayer;
+import android.media.Ringtone;
+import android.media.RingtoneManager;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.provider.Settings;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.HashSet;
+
+import io.wazo.callkeep.utils.ConstraintsMap;
+import io.wazo.callkeep.utils.LatencyHistogram;
+
+/**
+ * Shared ringtone player for incoming calls.
+ *
+ * The default ringtone is prepared once, ideally at setup, and the same player is reused by
+ * every call: it plays while at least one call rings and is rewound when the last one stops.
+ * The player is released when the system asks to trim memory while nothing rings.
+ *
+ * Ringing starts within {@link #START_DEADLINE_MS}: when the player is not prepared by then,
+ * or fails to load, the default ringtone is played through {@link RingtoneManager} instead.
+ * The delay between a start request and the ringtone playing is recorded.
+ *
+ * All methods must be called on the main thread.
+ */
+public final class CallRingtone {
+    private static final String TAG = "RNCK:CallRingtone";
+    static final long START_DEADLINE_MS = 300;
+
+    private static MediaPlayer player;
+    private static boolean prepared = false;
+    private static boolean hasAudioFocus = false;
+    // Set once the ringer mode allows ringing and audio focus is taken
+    private static boolean shouldRing = false;
+    private static long startRequestedAt = 0;
+    private static final HashSet<String> ringingCalls = new HashSet<>();
+    private static Context appContext;
+    // Played instead of the player when it is not ready in time
+    private static Ringtone fallback;
+    private static final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private static final Runnable startDeadline = CallRingtone::onStartDeadline;
+    private static final LatencyHistogram startLatency = new LatencyHistogram();
+    private static int fallbacks = 0;
+
+    private CallRingtone() {
+    }
+
+    /**
+     * Prepares the player ahead of the first call.
+     */
+    public static void prewarm(Context context) {
+        if (appContext == null) {
+            appContext = context.getApplicationContext();
+            appContext.registerComponentCallbacks(trimCallbacks);
+        }
+        if (player != null) {
+            return;
+        }
+
+        player = new MediaPlayer();
+        prepared = false;
+        player.setOnPreparedListener(mediaPlayer -> {
+            if (mediaPlayer != player) {
+                return;
+            }
+            prepared = true;
+            Log.d(TAG, "Ringtone prepared");
+            if (shouldRing) {
+                play();
+            }
+        });
+        player.setOnErrorListener((mediaPlayer, what, extra) -> {
+            Log.w(TAG, "Ringtone player error: " + what + ", " + extra);
+            release();
+            if (shouldRing) {
+                playFallback();
+            }
+            return true;
+        });
+        player.setLooping(true);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            player.setAudioAttributes(new AudioAttributes.Builder()
+                    .setUsage(AudioAttributes.USAGE_NOTIFICATION_RINGTONE)
+                    .setContentType(AudioAttributes.CONTENT_TYPE_SONIFICATION)
+                    .build());
+        } else {
+            player.setAudioStreamType(AudioManager.STREAM_RING);
+        }
+        try {
+            player.setDataSource(appContext, Settings.System.DEFAULT_RINGTONE_URI);
+            player.prepareAsync();
+        } catch (IOException | IllegalStateException e) {
+            Log.w(TAG, "Could not load the default ringtone", e);
+            release();
+            if (shouldRing) {
+                playFallback();
+            }
+        }
+    }
+
+    /**
+     * Rings for the given call, unless the ringer is silent.
+     */
+    public static void start(Context context, String uuid) {
+        if (!ringingCalls.add(uuid) || ringingCalls.size() > 1) {
+            // Already ringing for another call
+            return;
+        }
+        AudioManager am = (AudioManager) context.getSystemService(Context.AUDIO_SERVICE);
+        if (am.getRingerMode() == AudioManager.RINGER_MODE_SILENT) {
+            return;
+        }
+        startRequestedAt = SystemClock.elapsedRealtimeNanos();
+        if (!hasAudioFocus) {
+            am.requestAudioFocus(null, AudioManager.STREAM_RING, AudioManager.AUDIOFOCUS_GAIN);
+            hasAudioFocus = true;
+        }
+        shouldRing = true;
+        prewarm(context);
+        if (prepared) {
+            play();
+        } else if (shouldRing && fallback == null) {
+            // Otherwise the prepared listener starts it, unless it is too late by then
+            mainHandler.postDelayed(startDeadline, START_DEADLINE_MS);
+        }
+    }
+
+    /**
+     * Stops ringing for the given call. The ringtone goes on while other calls ring.
+     */
+    public static void stop(String uuid) {
+        if (!ringingCalls.remove(uuid) || !ringingCalls.isEmpty()) {
+            return;
+        }
+        silence();
+    }
+
+    public static void stopAll() {
+        if (ringingCalls.isEmpty()) {
+            return;
+        }
+        ringingCalls.clear();
+        silence();
+    }
+
+    /**
+     * Frees the player, the next call prepares it again.
+     */
+    public static void release() {
+        if (player == null) {
+            return;
+        }
+        Log.d(TAG, "Releasing the ringtone player");
+        player.release();
+        player = null;
+        prepared = false;
+    }
+
+    /**
+     * @return the delay between start requests and the ringtone playing, and how many times
+     * the fallback ringtone was used.
+     */
+    public static ConstraintsMap getMetrics() {
+        ConstraintsMap metrics = startLatency.toConstraintsMap();
+        metrics.putInt("fallbacks", fallbacks);
+        return metrics;
+    }
+
+    private static void play() {
+        if (fallback != null) {
+            // Already ringing
+            return;
+        }
+        try {
+            if (!player.isPlaying()) {
+                player.start();
+                onRinging();
+            }
+        } catch (IllegalStateException e) {
+            Log.w(TAG, "Could not start the ringtone", e);
+            playFallback();
+        }
+    }
+
+    private static void onStartDeadline() {
+        if (shouldRing && (player == null || !player.isPlaying())) {
+            Log.w(TAG, "Ringtone not prepared after " + START_DEADLINE_MS + "ms");
+            playFallback();
+        }
+    }
+
+    private static void playFallback() {
+        if (fallback != null || appContext == null) {
+            return;
+        }
+        Ringtone ringtone = RingtoneManager.getRingtone(appContext, Settings.System.DEFAULT_RINGTONE_URI);
+        if (ringtone == null) {
+            Log.w(TAG, "No default ringtone to fall back to");
+            return;
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.P) {
+            ringtone.setLooping(true);
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            ringtone.setAudioAttributes(new AudioAttributes.Builder()
+                    .setUsage(AudioAttributes.USAGE_NOTIFICATION_RINGTONE)
+                    .setContentType(AudioAttributes.CONTENT_TYPE_SONIFICATION)
+                    .build());
+        } else {
+            ringtone.setStreamType(AudioManager.STREAM_RING);
+        }
+        ringtone.play();
+        fallback = ringtone;
+        fallbacks++;
+        onRinging();
+    }
+
+    private static void onRinging() {
+        mainHandler.removeCallbacks(startDeadline);
+        long elapsedNanos = SystemClock.elapsedRealtimeNanos() - startRequestedAt;
+        startLatency.record(elapsedNanos);
+        Log.d(TAG, "Ringing after " + elapsedNanos / 1000000 + "ms");
+    }
+
+    private static void silence() {
+        shouldRing = false;
+        mainHandler.removeCallbacks(startDeadline);
+        if (fallback != null) {
+            fallback.stop();
+            fallback = null;
+        }
+        if (player != null && prepared) {
+            try {
+                if (player.isPlaying()) {
+                    player.pause();
+                }
+                // Ready to ring again from the start
+                player.seekTo(0);
+            } catch (IllegalStateException e) {
+                release();
+            }
+        }
+        if (hasAudioFocus && appContext != null) {
+            AudioManager am = (AudioManager) appContext.getSystemService(Context.AUDIO_SERVICE);
+            am.abandonAudioFocus(null);
+            hasAudioFocus = false;
+        }
+    }
+
+    private static final ComponentCallbacks2 trimCallbacks = new ComponentCallbacks2() {
+        @Override
+        public void onTrimMemory(int level) {
+            // Merely leaving the UI is not memory pressure, keep the player for the next call
+            if (level >= TRIM_MEMORY_RUNNING_LOW && level != TRIM_MEMORY_UI_HIDDEN && ringingCalls.isEmpty()) {
+                release();
+            }
+        }
+
+        @Override
+        public void onLowMemory() {
+            if (ringingCalls.isEmpty()) {
+                release();
+            }
+        }
+
+        @Override
+        public void onConfigurationChanged(Configuration newConfig) {
+        }
+    };
+}
@@ -0,0 +1,178 @@
+package io.wazo.callkeep.notification;
+
+import android.app.Notification;
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.graphics.Bitmap;
+import android.os.Build;
+
+import androidx.annotation.Nullable;
+import androidx.core.app.NotificationCompat;
+
+import java.util.HashMap;
+
+/**
+ * Incoming call notifications, one per call uuid.
+ *
+ * Each call gets its own notification id and its own answer and decline PendingIntents, which
+ * carry the call uuid and use request codes derived from the id, so several calls can be shown
+ * at once and acted on independently.
+ *
+ * All methods must be called on the main thread.
+ */
+public final class IncomingCallNotifications {
+    static final String EXTRA_UUID = "uuid";
+    static final String EXTRA_IS_CALL_ACCEPTED = "isCallAccepted";
+
+    private static final String NOTIFICATION_CHANNEL_ID = "channel01";
+    // Clear of the foreground service notification id
+    private static final int FIRST_NOTIFICATION_ID = 0x1000;
+
+    /* What is shown for one call */
+    private static final class Entry {
+        final int id;
+        String callerName;
+        String number;
+        // File path or uri of the caller picture, null for the default icon
+        @Nullable
+        String avatar;
+
+        Entry(int id, String callerName, String number, @Nullable String avatar) {
+            this.id = id;
+            this.callerName = callerName;
+            this.number = number;
+            this.avatar = avatar;
+        }
+    }
+
+    private static final HashMap<String, Entry> entries = new HashMap<>();
+    private static int nextId = FIRST_NOTIFICATION_ID;
+    private static boolean channelCreated = false;
+
+    private IncomingCallNotifications() {
+    }
+
+    public static void show(Context context, String uuid, String callerName, String number, @Nullable String avatar) {
+        Entry entry = entries.get(uuid);
+        if (entry == null) {
+            entry = new Entry(nextId++, callerName, number, avatar);
+            entries.put(uuid, entry);
+        } else {
+            entry.callerName = callerName;
+            entry.number = number;
+            entry.avatar = avatar;
+        }
+        notify(context, uuid, entry);
+    }
+
+    /**
+     * Changes the caller shown for a call, if its notification is displayed.
+     */
+    public static void update(Context context, String uuid, String callerName, String number) {
+        Entry entry = entries.get(uuid);
+        if (entry == null) {
+            return;
+        }
+        entry.callerName = callerName;
+        entry.number = number;
+        notify(context, uuid, entry);
+    }
+
+    public static void cancel(Context context, String uuid) {
+        Entry entry = entries.remove(uuid);
+        if (entry == null) {
+            return;
+        }
+        getManager(context).cancel(entry.id);
+    }
+
+    public static void cancelAll(Context context) {
+        if (entries.isEmpty()) {
+            return;
+        }
+        NotificationManager manager = getManager(context);
+        for (Entry entry : entries.values()) {
+            manager.cancel(entry.id);
+        }
+        entries.clear();
+    }
+
+    public static boolean isEmpty() {
+        return entries.isEmpty();
+    }
+
+    /**
+     * Creates the notification channel and starts decoding the default icon ahead of the first
+     * call.
+     */
+    public static void prewarm(Context context) {
+        Context appContext = context.getApplicationContext();
+        createChannel(getManager(appContext));
+        NotificationBitmaps.get(appContext, NotificationBitmaps.DEFAULT_ICON, (key, bitmap) -> {
+        });
+    }
+
+    private static void notify(Context context, final String uuid, final Entry entry) {
+        Context appContext = context.getApplicationContext();
+        NotificationManager manager = getManager(appContext);
+        createChannel(manager);
+
+        PendingIntent acceptIntent = actionIntent(appContext, uuid, entry.id * 2, true);
+        PendingIntent declineIntent = actionIntent(appContext, uuid, entry.id * 2 + 1, false);
+
+        // Shown without a large icon until it is decoded, then updated
+        Bitmap largeIcon = NotificationBitmaps.get(appContext, iconKey(entry), (key, bitmap) -> {
+            if (entries.get(uuid) == entry && key.equals(iconKey(entry))) {
+                notify(appContext, uuid, entry);
+            }
+        });
+
+        Notification notification = new NotificationCompat.Builder(appContext, NOTIFICATION_CHANNEL_ID)
+                .setSmallIcon(android.R.drawable.ic_menu_call)
+                .setLargeIcon(largeIcon)
+                .setOnlyAlertOnce(true)
+                .setContentTitle(entry.callerName)
+                .setContentText(entry.number)
+                .setDefaults(Notification.DEFAULT_LIGHTS | Notification.DEFAULT_VIBRATE)
+                .setPriority(NotificationCompat.PRIORITY_HIGH)
+                .setCategory(NotificationCompat.CATEGORY_CALL)
+                .addAction(android.R.drawable.ic_menu_call, "Decline", declineIntent)
+                .addAction(android.R.drawable.ic_menu_call, "Answer", acceptIntent)
+                .setOngoing(true)
+                .setAutoCancel(true)
+                .setFullScreenIntent(acceptIntent, true)
+                .build();
+
+        manager.notify(entry.id, notification);
+    }
+
+    private static void createChannel(NotificationManager manager) {
+        if (channelCreated || Build.VERSION.SDK_INT < Build.VERSION_CODES.O) {
+            return;
+        }
+        NotificationChannel channel = new NotificationChannel(NOTIFICATION_CHANNEL_ID, "Call notifications",
+                NotificationManager.IMPORTANCE_HIGH);
+        channel.setDescription("Incoming call notifications");
+        manager.createNotificationChannel(channel);
+        channelCreated = true;
+    }
+
+    private static String iconKey(Entry entry) {
+        return entry.avatar != null ? entry.avatar : NotificationBitmaps.DEFAULT_ICON;
+    }
+
+    private static PendingIntent actionIntent(Context context, String uuid, int requestCode, boolean accept) {
+        Intent intent = new Intent(context, CallHandler.class);
+        intent.putExtra(EXTRA_UUID, uuid);
+        intent.putExtra(EXTRA_IS_CALL_ACCEPTED, accept);
+        return PendingIntent.getBroadcast(context, requestCode, intent,
+                PendingIntent.FLAG_UPDATE_CURRENT | PendingIntent.FLAG_IMMUTABLE);
+    }
+
+    private static NotificationManager getManager(Context context) {
+        return (NotificationManager) context.getSystemService(Context.NOTIFICATION_SERVICE);
+    }
+}
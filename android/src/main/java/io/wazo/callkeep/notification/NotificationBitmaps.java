@@ -0,0 +1,218 @@
+package io.wazo.callkeep.notification;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.util.Log;
+import android.util.LruCache;
+
+import androidx.annotation.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Memory-bounded cache of the large icons shown in call notifications: the default icon and
+ * the caller avatars.
+ *
+ * Bitmaps are decoded on a background thread and downsampled to the notification large icon
+ * size; callers get them back on the main thread. An avatar that can not be decoded is
+ * remembered and replaced by the default icon. The cache shrinks on memory pressure.
+ *
+ * All methods must be called on the main thread.
+ */
+public final class NotificationBitmaps {
+    private static final String TAG = "RNCK:NotificationBitmaps";
+    static final String DEFAULT_ICON = "default";
+
+    public interface Callback {
+        void onBitmap(String key, Bitmap bitmap);
+    }
+
+    private static LruCache<String, Bitmap> cache;
+    // Callbacks waiting for a bitmap being decoded
+    private static final HashMap<String, List<Callback>> pending = new HashMap<>();
+    // Keys that could not be decoded, not to be decoded again
+    private static final HashSet<String> failed = new HashSet<>();
+    private static final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private static Handler decoder;
+    private static Context appContext;
+
+    private NotificationBitmaps() {
+    }
+
+    /**
+     * @param key {@link #DEFAULT_ICON}, a file path, or a file or content uri.
+     * @return the cached bitmap, or null after scheduling its decoding: the callback then
+     * receives it. An avatar that can not be decoded is replaced by the default icon, still
+     * reported under its own key.
+     */
+    @Nullable
+    public static Bitmap get(Context context, String key, Callback callback) {
+        init(context);
+        if (failed.contains(key)) {
+            return DEFAULT_ICON.equals(key) ? null : getDefault(key, callback);
+        }
+        Bitmap bitmap = cache.get(key);
+        if (bitmap != null) {
+            return bitmap;
+        }
+
+        List<Callback> callbacks = pending.get(key);
+        if (callbacks != null) {
+            callbacks.add(callback);
+            return null;
+        }
+        callbacks = new ArrayList<>();
+        callbacks.add(callback);
+        pending.put(key, callbacks);
+
+        final String source = key;
+        decoder.post(() -> {
+            final Bitmap decoded = decode(source);
+            mainHandler.post(() -> {
+                List<Callback> waiting = pending.remove(source);
+                if (decoded == null) {
+                    failed.add(source);
+                    if (waiting != null && !DEFAULT_ICON.equals(source)) {
+                        for (Callback waiter : waiting) {
+                            Bitmap fallback = getDefault(source, waiter);
+                            if (fallback != null) {
+                                waiter.onBitmap(source, fallback);
+                            }
+                        }
+                    }
+                    return;
+                }
+                cache.put(source, decoded);
+                if (waiting != null) {
+                    for (Callback waiter : waiting) {
+                        waiter.onBitmap(source, decoded);
+                    }
+                }
+            });
+        });
+        return null;
+    }
+
+    // The default icon, reported under the key of the avatar it replaces
+    @Nullable
+    private static Bitmap getDefault(final String key, final Callback callback) {
+        return get(appContext, DEFAULT_ICON, (defaultKey, bitmap) -> callback.onBitmap(key, bitmap));
+    }
+
+    private static void init(Context context) {
+        if (cache != null) {
+            return;
+        }
+        appContext = context.getApplicationContext();
+        // An eighth of the heap at most, avatars are small once downsampled
+        int maxBytes = (int) Math.min(Runtime.getRuntime().maxMemory() / 8, 4 * 1024 * 1024);
+        cache = new LruCache<String, Bitmap>(maxBytes) {
+            @Override
+            protected int sizeOf(String key, Bitmap value) {
+                return value.getByteCount();
+            }
+        };
+        HandlerThread thread = new HandlerThread("CallKeepBitmaps");
+        thread.start();
+        decoder = new Handler(thread.getLooper());
+        appContext.registerComponentCallbacks(trimCallbacks);
+    }
+
+    // Runs on the decoder thread
+    @Nullable
+    private static Bitmap decode(String key) {
+        Resources res = appContext.getResources();
+        int width = res.getDimensionPixelSize(android.R.dimen.notification_large_icon_width);
+        int height = res.getDimensionPixelSize(android.R.dimen.notification_large_icon_height);
+
+        try {
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inJustDecodeBounds = true;
+            decode(key, options);
+            if (options.outWidth <= 0 || options.outHeight <= 0) {
+                Log.w(TAG, "Could not read the bounds of " + key);
+                return null;
+            }
+
+            options.inJustDecodeBounds = false;
+            options.inSampleSize = sampleSize(options.outWidth, options.outHeight, width, height);
+            Bitmap bitmap = decode(key, options);
+            if (bitmap == null) {
+                return null;
+            }
+            if (bitmap.getWidth() > width || bitmap.getHeight() > height) {
+                float scale = Math.min((float) width / bitmap.getWidth(), (float) height / bitmap.getHeight());
+                Bitmap scaled = Bitmap.createScaledBitmap(bitmap,
+                        Math.max(1, Math.round(bitmap.getWidth() * scale)),
+                        Math.max(1, Math.round(bitmap.getHeight() * scale)), true);
+                if (scaled != bitmap) {
+                    bitmap.recycle();
+                }
+                bitmap = scaled;
+            }
+            return bitmap;
+        } catch (IOException | SecurityException e) {
+            Log.w(TAG, "Could not decode " + key, e);
+            return null;
+        }
+    }
+
+    @Nullable
+    private static Bitmap decode(String key, BitmapFactory.Options options) throws IOException {
+        if (DEFAULT_ICON.equals(key)) {
+            return BitmapFactory.decodeResource(appContext.getResources(), android.R.drawable.ic_menu_gallery, options);
+        }
+        Uri uri = key.startsWith("/") ? Uri.fromFile(new File(key)) : Uri.parse(key);
+        InputStream stream = appContext.getContentResolver().openInputStream(uri);
+        if (stream == null) {
+            return null;
+        }
+        try {
+            return BitmapFactory.decodeStream(stream, null, options);
+        } finally {
+            stream.close();
+        }
+    }
+
+    private static int sampleSize(int width, int height, int targetWidth, int targetHeight) {
+        int sampleSize = 1;
+        while (width / (sampleSize * 2) >= targetWidth && height / (sampleSize * 2) >= targetHeight) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    private static final ComponentCallbacks2 trimCallbacks = new ComponentCallbacks2() {
+        @Override
+        public void onTrimMemory(int level) {
+            if (level >= TRIM_MEMORY_BACKGROUND || level == TRIM_MEMORY_RUNNING_CRITICAL) {
+                cache.evictAll();
+            } else if (level >= TRIM_MEMORY_RUNNING_LOW && level != TRIM_MEMORY_UI_HIDDEN) {
+                cache.trimToSize(cache.maxSize() / 2);
+            }
+        }
+
+        @Override
+        public void onLowMemory() {
+            cache.evictAll();
+        }
+
+        @Override
+        public void onConfigurationChanged(Configuration newConfig) {
+        }
+    };
+}
@@ -1,20 +1,69 @@
 package io.wazo.callkeep.utils;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 
+/**
+ * Typed view over a list received from, or sent to, the Flutter channels.
+ *
+ * Follows {@link ConstraintsMap}: nested views are cached, the getters taking a fallback value
+ * never throw, and a frozen array is read-only.
+ */
 public class ConstraintsArray {
 
-    final private  ArrayList<Object> mArray;
+    final private  List<Object> mArray;
+    // Transient so that serializing an array only writes its values.
+    private transient Object[] mViews;
+    private transient ObjectType[] mTypes;
+    private transient List<Object> mReadOnly;
 
     public ConstraintsArray(){
         this.mArray = new ArrayList<>();
     }
 
-    public ConstraintsArray(ArrayList<Object> array){
+    public ConstraintsArray(List<Object> array){
      this.mArray = array;
     }
 
+    /**
+     * Makes this array, and the maps and arrays nested in it, read-only.
+     *
+     * @return this array.
+     */
+    public ConstraintsArray freeze() {
+        if (isFrozen()) {
+            return this;
+        }
+        int size = mArray.size();
+        ObjectType[] types = new ObjectType[size];
+        Object[] views = new Object[size];
+        // Nested maps and arrays are exposed through their own read-only view
+        ArrayList<Object> readOnly = new ArrayList<>(mArray);
+        for (int i = 0; i < size; i++) {
+            Object value = mArray.get(i);
+            types[i] = typeOf(value);
+            if (types[i] == ObjectType.Map) {
+                ConstraintsMap view = new ConstraintsMap((Map<String, Object>) value).freeze();
+                views[i] = view;
+                readOnly.set(i, view.toMap());
+            } else if (types[i] == ObjectType.Array) {
+                ConstraintsArray view = new ConstraintsArray((List<Object>) value).freeze();
+                views[i] = view;
+                readOnly.set(i, view.toArrayList());
+            }
+        }
+        mTypes = types;
+        mViews = views;
+        mReadOnly = Collections.unmodifiableList(readOnly);
+        return this;
+    }
+
+    public boolean isFrozen() {
+        return mReadOnly != null;
+    }
+
     public int size(){
         return mArray.size();
     }
@@ -27,87 +76,174 @@ public class ConstraintsArray {
         return (Boolean) mArray.get(index);
     }
 
+    public boolean getBoolean(int index, boolean fallback) {
+        Object value = valueAt(index);
+        return value instanceof Boolean ? (Boolean) value : fallback;
+    }
+
     public double getDouble(int index){
         return (double) mArray.get(index);
     }
 
+    public double getDouble(int index, double fallback) {
+        Object value = valueAt(index);
+        return value instanceof Number ? ((Number) value).doubleValue() : fallback;
+    }
+
     public int getInt(int index){
         return (int) mArray.get(index);
     }
 
+    public int getInt(int index, int fallback) {
+        Object value = valueAt(index);
+        if (value instanceof Number) {
+            return ((Number) value).intValue();
+        } else if (value instanceof String) {
+            return ConstraintsMap.parseInt((String) value, fallback);
+        }
+        return fallback;
+    }
+
     public String getString(int index){
         return (String) mArray.get(index);
     }
 
+    public String getString(int index, String fallback) {
+        Object value = valueAt(index);
+        return value instanceof String ? (String) value : fallback;
+    }
+
     public Byte[] getByte(int index){
         return (Byte[]) mArray.get(index);
     }
 
     public ConstraintsArray getArray(int index){
-        return new ConstraintsArray((ArrayList<Object>)mArray.get(index));
+        Object value = mArray.get(index);
+        Object view = cachedView(index);
+        if (view instanceof ConstraintsArray && ((ConstraintsArray) view).mArray == value) {
+            return (ConstraintsArray) view;
+        }
+        ConstraintsArray array = new ConstraintsArray((List<Object>) value);
+        cacheView(index, array);
+        return array;
     }
 
     public ConstraintsMap getMap(int index){
-        return new ConstraintsMap((Map<String, Object>) mArray.get(index));
+        Object value = mArray.get(index);
+        Object view = cachedView(index);
+        if (view instanceof ConstraintsMap && ((ConstraintsMap) view).source() == value) {
+            return (ConstraintsMap) view;
+        }
+        ConstraintsMap map = new ConstraintsMap((Map<String, Object>) value);
+        cacheView(index, map);
+        return map;
     }
 
     public ObjectType getType(int index) {
-        Object object = mArray.get(index);
-
-        if (object == null) {
-            return ObjectType.Null;
-        } else if (object instanceof Boolean) {
-            return ObjectType.Boolean;
-        } else if (object instanceof Double ||
-                object instanceof Float ||
-                object instanceof Integer) {
-            return ObjectType.Number;
-        } else if (object instanceof String) {
-            return ObjectType.String;
-        } else if (object instanceof ArrayList) {
-            return ObjectType.Array;
-        } else if (object instanceof Map) {
-            return ObjectType.Map;
-        } else if (object instanceof Byte) {
-            return ObjectType.Byte;
+        if (mTypes != null) {
+            return mTypes[index];
         }
-        return ObjectType.Null;
+        return typeOf(mArray.get(index));
+    }
+
+    /**
+     * @return the values, read-only once frozen.
+     */
+    public List<Object> toArrayList(){
+        return isFrozen() ? mReadOnly : mArray;
     }
 
-    public ArrayList<Object> toArrayList(){
+    List<Object> source() {
         return mArray;
     }
 
     public void pushNull(){
+        checkMutable();
         mArray.add(null);
     }
 
     public void pushBoolean(boolean value){
+        checkMutable();
         mArray.add(value);
     }
 
     public void pushDouble(double value){
+        checkMutable();
         mArray.add(value);
     }
 
     public void pushInt(int value){
+        checkMutable();
         mArray.add(value);
     }
 
     public void pushString(String value){
+        checkMutable();
         mArray.add(value);
     }
 
     public void pushArray(ConstraintsArray array){
-        mArray.add(array.toArrayList());
+        checkMutable();
+        mArray.add(array.source());
     }
 
     public void pushByte(byte[] value){
+        checkMutable();
         mArray.add(value);
     }
 
     public void pushMap(ConstraintsMap map){
-        mArray.add(map.toMap());
+        checkMutable();
+        mArray.add(map.source());
+    }
+
+    private Object valueAt(int index) {
+        return index >= 0 && index < mArray.size() ? mArray.get(index) : null;
+    }
+
+    private Object cachedView(int index) {
+        return mViews != null && index < mViews.length ? mViews[index] : null;
+    }
+
+    private void cacheView(int index, Object view) {
+        if (isFrozen()) {
+            return;
+        }
+        if (mViews == null || index >= mViews.length) {
+            Object[] views = new Object[Math.max(index + 1, mArray.size())];
+            if (mViews != null) {
+                System.arraycopy(mViews, 0, views, 0, mViews.length);
+            }
+            mViews = views;
+        }
+        mViews[index] = view;
+    }
+
+    private void checkMutable() {
+        if (isFrozen()) {
+            throw new UnsupportedOperationException("ConstraintsArray is frozen");
+        }
+    }
+
+    private static ObjectType typeOf(Object object) {
+        if (object == null) {
+            return ObjectType.Null;
+        } else if (object instanceof Boolean) {
+            return ObjectType.Boolean;
+        } else if (object instanceof Double ||
+                object instanceof Float ||
+                object instanceof Integer) {
+            return ObjectType.Number;
+        } else if (object instanceof String) {
+            return ObjectType.String;
+        } else if (object instanceof List) {
+            return ObjectType.Array;
+        } else if (object instanceof Map) {
+            return ObjectType.Map;
+        } else if (object instanceof Byte) {
+            return ObjectType.Byte;
+        }
+        return ObjectType.Null;
     }
 
 }
@@ -1,12 +1,26 @@
 package io.wazo.callkeep.utils;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
+/**
+ * Typed view over a map received from, or sent to, the Flutter channels.
+ *
+ * Nested maps and arrays are returned as views that are cached and reused for as long as the
+ * underlying value does not change, and the getters taking a fallback value never throw. A
+ * frozen map is read-only: its type tags and nested views are computed once, which makes it
+ * safe to share and cheap to read repeatedly.
+ */
 public class ConstraintsMap {
 
     private final Map<String, Object> mMap;
+    // Transient so that serializing a map only writes its values.
+    private transient HashMap<String, Object> mViews;
+    private transient HashMap<String, ObjectType> mTypes;
+    private transient Map<String, Object> mReadOnly;
 
     public ConstraintsMap(){
         mMap = new HashMap<String,Object>();
@@ -16,7 +30,55 @@ public class ConstraintsMap {
         this.mMap = map;
     }
 
+    /**
+     * Makes this map, and the maps and arrays nested in it, read-only.
+     *
+     * @return this map.
+     */
+    public ConstraintsMap freeze() {
+        if (isFrozen()) {
+            return this;
+        }
+        HashMap<String, ObjectType> types = new HashMap<>(mMap.size());
+        HashMap<String, Object> views = new HashMap<>();
+        // Nested maps and arrays are exposed through their own read-only view
+        HashMap<String, Object> readOnly = new HashMap<>(mMap);
+        for (Map.Entry<String, Object> entry : mMap.entrySet()) {
+            Object value = entry.getValue();
+            ObjectType type = typeOf(value);
+            types.put(entry.getKey(), type);
+            if (type == ObjectType.Map) {
+                ConstraintsMap view = new ConstraintsMap((Map<String, Object>) value).freeze();
+                views.put(entry.getKey(), view);
+                readOnly.put(entry.getKey(), view.toMap());
+            } else if (type == ObjectType.Array) {
+                ConstraintsArray view = new ConstraintsArray((List<Object>) value).freeze();
+                views.put(entry.getKey(), view);
+                readOnly.put(entry.getKey(), view.toArrayList());
+            }
+        }
+        mTypes = types;
+        mViews = views;
+        mReadOnly = Collections.unmodifiableMap(readOnly);
+        return this;
+    }
+
+    /**
+     * @return a mutable copy of this map, the maps and arrays nested in it copied as well.
+     */
+    public ConstraintsMap copy() {
+        return new ConstraintsMap((Map<String, Object>) copyValue(mMap));
+    }
+
+    public boolean isFrozen() {
+        return mReadOnly != null;
+    }
+
     public Map<String, Object> toMap() {
+        return isFrozen() ? mReadOnly : mMap;
+    }
+
+    Map<String, Object> source() {
         return mMap;
     }
 
@@ -32,10 +94,20 @@ public class ConstraintsMap {
         return (boolean) mMap.get(name);
     }
 
+    public boolean getBoolean(String name, boolean fallback) {
+        Object value = mMap.get(name);
+        return value instanceof Boolean ? (Boolean) value : fallback;
+    }
+
     public double getDouble(String name){
         return (double) mMap.get(name);
     }
 
+    public double getDouble(String name, double fallback) {
+        Object value = mMap.get(name);
+        return value instanceof Number ? ((Number) value).doubleValue() : fallback;
+    }
+
     public int getInt(String name) {
         if(getType(name) == ObjectType.String) {
             return Integer.parseInt(((String)mMap.get(name)));
@@ -43,73 +115,102 @@ public class ConstraintsMap {
         return (int) mMap.get(name);
     }
 
+    public int getInt(String name, int fallback) {
+        Object value = mMap.get(name);
+        if (value instanceof Number) {
+            return ((Number) value).intValue();
+        } else if (value instanceof String) {
+            return parseInt((String) value, fallback);
+        }
+        return fallback;
+    }
+
     public String getString(String name){
         return (String) mMap.get(name);
     }
 
+    public String getString(String name, String fallback) {
+        Object value = mMap.get(name);
+        return value instanceof String ? (String) value : fallback;
+    }
+
     public ConstraintsMap getMap(String name){
         Object value = mMap.get(name);
         if (value == null) {
             return null;
         }
-        return new ConstraintsMap((Map<String, Object>) value);
+        Object view = mViews != null ? mViews.get(name) : null;
+        if (view instanceof ConstraintsMap && ((ConstraintsMap) view).mMap == value) {
+            return (ConstraintsMap) view;
+        }
+        ConstraintsMap map = new ConstraintsMap((Map<String, Object>) value);
+        cacheView(name, map);
+        return map;
     }
 
     public ObjectType getType(String name) {
-        Object value = mMap.get(name);
-        if (value == null) {
-            return ObjectType.Null;
-        } else if (value instanceof Number) {
-            return ObjectType.Number;
-        } else if (value instanceof String) {
-            return ObjectType.String;
-        } else if (value instanceof Boolean) {
-            return ObjectType.Boolean;
-        } else if (value instanceof Map) {
-            return ObjectType.Map;
-        } else if (value instanceof ArrayList) {
-            return ObjectType.Array;
-        } else if (value instanceof Byte) {
-            return ObjectType.Byte;
-        } else {
+        ObjectType type = mTypes != null ? mTypes.get(name) : typeOf(mMap.get(name));
+        if (type == null) {
+            Object value = mMap.get(name);
+            if (value == null) {
+                return ObjectType.Null;
+            }
             throw new IllegalArgumentException("Invalid value " + value.toString() + " for key " + name +
                     "contained in ConstraintsMap");
         }
+        return type;
     }
 
     public void putBoolean(String key, boolean value) {
+        checkMutable();
         mMap.put(key, value);
     }
 
     public void putDouble(String key, double value) {
+        checkMutable();
         mMap.put(key, value);
     }
 
     public void putInt(String key, int value) {
+        checkMutable();
         mMap.put(key, value);
     }
 
     public void putString(String key, String value) {
+        checkMutable();
         mMap.put(key, value);
     }
 
     public void putByte(String key, byte[] value) {
+        checkMutable();
         mMap.put(key, value);
     }
 
     public void putNull(String key) {
+        checkMutable();
         mMap.put(key, null);
     }
 
     public void putMap(String key, Map<String, Object> value) {
+        checkMutable();
         mMap.put(key, value);
     }
 
     public void merge(Map<String, Object> value) {
+        checkMutable();
         mMap.putAll(value);
     }
 
     public void putArray(String key, ArrayList<Object> value) {
+        checkMutable();
+        mMap.put(key, value);
+    }
+
+    /**
+     * Puts a value of any type the Flutter codec can encode, such as a method call result.
+     */
+    public void putObject(String key, Object value) {
+        checkMutable();
         mMap.put(key, value);
     }
 
@@ -118,10 +219,112 @@ public class ConstraintsMap {
         if (value == null) {
             return null;
         }
-        return new ConstraintsArray((ArrayList<Object>) value);
+        Object view = mViews != null ? mViews.get(name) : null;
+        if (view instanceof ConstraintsArray && ((ConstraintsArray) view).source() == value) {
+            return (ConstraintsArray) view;
+        }
+        ConstraintsArray array = new ConstraintsArray((List<Object>) value);
+        cacheView(name, array);
+        return array;
     }
 
-    public ArrayList<Object> getListArray(String name){
-        return (ArrayList<Object>) mMap.get(name);
+    public List<Object> getListArray(String name){
+        ConstraintsArray array = getArray(name);
+        return array != null ? array.toArrayList() : null;
+    }
+
+    private void cacheView(String name, Object view) {
+        if (isFrozen()) {
+            return;
+        }
+        if (mViews == null) {
+            mViews = new HashMap<>();
+        }
+        mViews.put(name, view);
+    }
+
+    private void checkMutable() {
+        if (isFrozen()) {
+            throw new UnsupportedOperationException("ConstraintsMap is frozen");
+        }
+    }
+
+    static Object copyValue(Object value) {
+        if (value instanceof Map) {
+            Map<String, Object> source = (Map<String, Object>) value;
+            HashMap<String, Object> copy = new HashMap<>(source.size());
+            for (Map.Entry<String, Object> entry : source.entrySet()) {
+                copy.put(entry.getKey(), copyValue(entry.getValue()));
+            }
+            return copy;
+        } else if (value instanceof List) {
+            List<Object> source = (List<Object>) value;
+            ArrayList<Object> copy = new ArrayList<>(source.size());
+            for (Object item : source) {
+                copy.add(copyValue(item));
+            }
+            return copy;
+        } else if (value instanceof byte[]) {
+            return ((byte[]) value).clone();
+        }
+        return value;
+    }
+
+    /**
+     * @return the type of a value, null if it is not one of the supported types.
+     */
+    static ObjectType typeOf(Object value) {
+        if (value == null) {
+            return ObjectType.Null;
+        } else if (value instanceof Number) {
+            return ObjectType.Number;
+        } else if (value instanceof String) {
+            return ObjectType.String;
+        } else if (value instanceof Boolean) {
+            return ObjectType.Boolean;
+        } else if (value instanceof Map) {
+            return ObjectType.Map;
+        } else if (value instanceof List) {
+            return ObjectType.Array;
+        } else if (value instanceof Byte) {
+            return ObjectType.Byte;
+        }
+        return null;
+    }
+
+    /**
+     * Parses a decimal int without allocating or throwing.
+     */
+    static int parseInt(String value, int fallback) {
+        int length = value.length();
+        if (length == 0) {
+            return fallback;
+        }
+        int i = 0;
+        boolean negative = false;
+        char first = value.charAt(0);
+        if (first == '-' || first == '+') {
+            negative = first == '-';
+            i++;
+            if (length == 1) {
+                return fallback;
+            }
+        }
+        long result = 0;
+        for (; i < length; i++) {
+            int digit = value.charAt(i) - '0';
+            if (digit < 0 || digit > 9) {
+                return fallback;
+            }
+            result = result * 10 + digit;
+            if (result > (long) Integer.MAX_VALUE + 1) {
+                return fallback;
+            }
+        }
+        result = negative ? -result : result;
+        if (result > Integer.MAX_VALUE) {
+            return fallback;
+        }
+        return (int) result;
     }
 }
@@ -0,0 +1,77 @@
+package io.wazo.callkeep.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free latency histogram with power-of-two microsecond buckets.
+ *
+ * Bucket i counts samples below 2^i microseconds, so percentiles are reported as the upper
+ * bound of the bucket they fall in. Recording is a few atomic increments and never allocates.
+ */
+public class LatencyHistogram {
+    private static final int BUCKETS = 32;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong totalMicros = new AtomicLong();
+    private final AtomicLong maxMicros = new AtomicLong();
+
+    public void record(long elapsedNanos) {
+        long micros = Math.max(0, elapsedNanos / 1000);
+        int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+        buckets.incrementAndGet(bucket);
+        count.incrementAndGet();
+        totalMicros.addAndGet(micros);
+
+        long max = maxMicros.get();
+        while (micros > max && !maxMicros.compareAndSet(max, micros)) {
+            max = maxMicros.get();
+        }
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * @param percentile between 0 and 100.
+     * @return the upper bound, in microseconds, of the bucket holding the percentile.
+     */
+    public long getPercentileMicros(double percentile) {
+        long total = count.get();
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(total * percentile / 100.0);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += buckets.get(i);
+            if (seen >= rank) {
+                return Math.min(1L << i, maxMicros.get());
+            }
+        }
+        return maxMicros.get();
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets.set(i, 0);
+        }
+        count.set(0);
+        totalMicros.set(0);
+        maxMicros.set(0);
+    }
+
+    public ConstraintsMap toConstraintsMap() {
+        long total = count.get();
+        ConstraintsMap map = new ConstraintsMap();
+        map.putInt("count", (int) Math.min(Integer.MAX_VALUE, total));
+        map.putDouble("meanMicros", total == 0 ? 0 : (double) totalMicros.get() / total);
+        map.putDouble("p50Micros", getPercentileMicros(50));
+        map.putDouble("p90Micros", getPercentileMicros(90));
+        map.putDouble("p99Micros", getPercentileMicros(99));
+        map.putDouble("maxMicros", maxMicros.get());
+        return map;
+    }
+}
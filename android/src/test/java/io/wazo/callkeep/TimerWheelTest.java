@@ -0,0 +1,149 @@
+package io.wazo.callkeep;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TimerWheelTest {
+    private static final long TICK = 10;
+    private static final int WHEEL_SIZE = 8;
+
+    private long now;
+    private final List<Runnable> dispatched = new ArrayList<>();
+    private final List<String> ran = new ArrayList<>();
+    private TimerWheel wheel;
+
+    @Before
+    public void setUp() {
+        now = 0;
+        dispatched.clear();
+        ran.clear();
+        wheel = new TimerWheel(() -> now, TICK, WHEEL_SIZE, dispatched::add);
+    }
+
+    @Test
+    public void expiresOnceTheDeadlineIsReached() {
+        wheel.schedule(task("a"), 25, TimeUnit.NANOSECONDS);
+
+        advanceTo(20);
+        assertTrue(ran.isEmpty());
+
+        advanceTo(30);
+        assertEquals(listOf("a"), ran);
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void cancelledTimeoutNeverRuns() {
+        TimerWheel.Timeout timeout = wheel.schedule(task("a"), 50, TimeUnit.NANOSECONDS);
+        wheel.schedule(task("b"), 50, TimeUnit.NANOSECONDS);
+
+        assertTrue(timeout.cancel());
+        assertEquals(1, wheel.size());
+
+        advanceTo(100);
+        assertEquals(listOf("b"), ran);
+        assertFalse(timeout.cancel());
+    }
+
+    @Test
+    public void expiresAfterSeveralRoundsOfTheWheel() {
+        // Three times around the wheel, plus a bit
+        long delay = TICK * WHEEL_SIZE * 3 + 15;
+        wheel.schedule(task("a"), delay, TimeUnit.NANOSECONDS);
+        wheel.schedule(task("b"), 15, TimeUnit.NANOSECONDS);
+
+        advanceTo(delay - TICK);
+        assertEquals(listOf("b"), ran);
+
+        advanceTo(delay + TICK);
+        assertEquals(listOf("b", "a"), ran);
+    }
+
+    @Test
+    public void cancelAfterExpiryButBeforeDispatchPreventsTheTask() {
+        TimerWheel.Timeout timeout = wheel.schedule(task("a"), 10, TimeUnit.NANOSECONDS);
+
+        now = 20;
+        wheel.advance();
+        assertEquals(1, dispatched.size());
+
+        assertTrue(timeout.cancel());
+        runDispatched();
+        assertTrue(ran.isEmpty());
+        assertFalse(timeout.cancel());
+    }
+
+    @Test
+    public void cancelAfterTheTaskRanFails() {
+        TimerWheel.Timeout timeout = wheel.schedule(task("a"), 10, TimeUnit.NANOSECONDS);
+
+        advanceTo(20);
+        assertEquals(listOf("a"), ran);
+        assertFalse(timeout.cancel());
+    }
+
+    @Test
+    public void threadedWheelRunsTheTaskAfterItsDelay() throws InterruptedException {
+        TimerWheel threaded = new TimerWheel(Runnable::run);
+        final CountDownLatch latch = new CountDownLatch(1);
+        long start = System.nanoTime();
+
+        threaded.schedule(latch::countDown, 50, TimeUnit.MILLISECONDS);
+
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+        assertEquals(0, threaded.size());
+    }
+
+    @Test
+    public void threadedWheelWakesUpForAnEarlierTimeout() throws InterruptedException {
+        TimerWheel threaded = new TimerWheel(Runnable::run);
+        final CountDownLatch latch = new CountDownLatch(1);
+
+        // The worker goes to sleep until the first deadline, the second one must wake it up
+        TimerWheel.Timeout later = threaded.schedule(task("later"), 1, TimeUnit.HOURS);
+        Thread.sleep(50);
+        threaded.schedule(latch::countDown, 50, TimeUnit.MILLISECONDS);
+
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertEquals(1, threaded.size());
+        assertTrue(later.cancel());
+    }
+
+    private Runnable task(final String name) {
+        return () -> ran.add(name);
+    }
+
+    private void advanceTo(long time) {
+        while (now < time) {
+            now = Math.min(time, now + TICK);
+            wheel.advance();
+            runDispatched();
+        }
+    }
+
+    private void runDispatched() {
+        List<Runnable> tasks = new ArrayList<>(dispatched);
+        dispatched.clear();
+        for (Runnable task : tasks) {
+            task.run();
+        }
+    }
+
+    private static List<String> listOf(String... names) {
+        List<String> list = new ArrayList<>();
+        for (String name : names) {
+            list.add(name);
+        }
+        return list;
+    }
+}
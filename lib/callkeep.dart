@@ -1,3 +1,4 @@
 export 'src/actions.dart';
 export 'src/api.dart';
+export 'src/command.dart';
 export 'src/event.dart';
@@ -83,6 +83,15 @@ class CallKeepCheckReachability extends EventType {
   CallKeepCheckReachability();
 }
 
+class CallKeepDidFailToRegisterPhoneAccount extends EventType {
+  CallKeepDidFailToRegisterPhoneAccount();
+  CallKeepDidFailToRegisterPhoneAccount.fromMap(Map<dynamic, dynamic> arguments)
+      : code = arguments['code'] as String?,
+        message = arguments['message'] as String?;
+  String? code;
+  String? message;
+}
+
 class CallKeepDidLoadWithEvents extends EventType {
   CallKeepDidLoadWithEvents();
 }
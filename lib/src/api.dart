@@ -1,5 +1,6 @@
 import 'dart:async';
 import 'dart:io';
+import 'dart:ui' show CallbackHandle, PluginUtilities;
 import 'package:flutter/services.dart';
 import 'package:flutter/material.dart'
     show
@@ -10,10 +11,12 @@ import 'package:flutter/material.dart'
         Text,
         TextButton,
         Widget,
+        WidgetsFlutterBinding,
         showDialog;
 import 'package:flutter/services.dart' show MethodChannel;
 
 import 'actions.dart';
+import 'command.dart';
 import 'event.dart';
 
 bool get isIOS => Platform.isIOS;
@@ -26,15 +29,27 @@ class FlutterCallkeep extends EventManager {
   }
   FlutterCallkeep._internal() {
     _event.setMethodCallHandler(eventListener);
+    _binaryEvent.setMessageHandler(_binaryEventListener);
   }
   static final FlutterCallkeep _instance = FlutterCallkeep._internal();
   static const MethodChannel _channel = MethodChannel('FlutterCallKeep.Method');
   static const MethodChannel _event = MethodChannel('FlutterCallKeep.Event');
+  static const BasicMessageChannel<ByteData?> _binaryEvent =
+      BasicMessageChannel<ByteData?>(
+          'FlutterCallKeep.EventBinary', BinaryCodec());
+  final CallKeepEventDecoder _eventDecoder = CallKeepEventDecoder();
+  static final ByteData _binaryEventAck = ByteData(1);
   BuildContext? _context;
 
   Future<void> setup(BuildContext? context, Map<String, dynamic> options,
       {bool backgroundMode = false}) async {
     _context = context;
+    if (!isIOS) {
+      _eventDecoder.reset();
+      await _setupAndroid(options['ios'] as Map<String, dynamic>,
+          options['android'] as Map<String, dynamic>?);
+      return;
+    }
     await _setupIOS(options['ios'] as Map<String, dynamic>);
   }
 
@@ -82,13 +97,15 @@ class FlutterCallkeep extends EventManager {
   Future<void> displayIncomingCall(String uuid, String handle,
       {String localizedCallerName = '',
       String handleType = 'number',
-      bool hasVideo = false}) async {
+      bool hasVideo = false,
+      String? avatar}) async {
     if (!isIOS) {
       await _channel.invokeMethod<void>(
           'displayIncomingCall', <String, dynamic>{
         'uuid': uuid,
         'handle': handle,
-        'localizedCallerName': localizedCallerName
+        'localizedCallerName': localizedCallerName,
+        'avatar': avatar
       });
       return;
     }
@@ -246,6 +263,158 @@ class FlutterCallkeep extends EventManager {
       await _channel.invokeMethod<void>(
           'setOnHold', <String, dynamic>{'uuid': uuid, 'hold': shouldHold});
 
+  /// Runs [commands] in order in a single platform channel round trip.
+  ///
+  /// On Android the commands are validated first and run in one native pass:
+  /// if one of them cannot be batched, targets an unknown call or has invalid
+  /// arguments, none is run and a [PlatformException] is thrown. Elsewhere
+  /// they are sent one by one. A command failing while running is reported in
+  /// its result and does not stop the next ones; commands already run are not
+  /// rolled back.
+  Future<List<CallKeepCommandResult>> batch(
+      List<CallKeepCommand> commands) async {
+    if (isIOS) {
+      final results = <CallKeepCommandResult>[];
+      for (final command in commands) {
+        try {
+          results.add(CallKeepCommandResult.success(await _channel
+              .invokeMethod<dynamic>(command.method, command.arguments)));
+        } on PlatformException catch (e) {
+          results.add(CallKeepCommandResult.error(e.code, e.message));
+        }
+      }
+      return results;
+    }
+    final resp = await _channel.invokeMethod<List<dynamic>>(
+        'batch', <String, dynamic>{
+      'commands': commands.map((command) => command.toMap()).toList()
+    });
+    return (resp ?? <dynamic>[])
+        .map((dynamic result) =>
+            CallKeepCommandResult.fromMap(result as Map<dynamic, dynamic>))
+        .toList();
+  }
+
+  /// Latency statistics of each native method called so far, keyed by method
+  /// name: `count`, `meanMicros`, `p50Micros`, `p90Micros`, `p99Micros` and
+  /// `maxMicros`. Only available on Android.
+  Future<Map<String, dynamic>> getMethodMetrics() async {
+    if (isIOS) {
+      return <String, dynamic>{};
+    }
+    final resp = await _channel.invokeMapMethod<String, dynamic>(
+        'getMethodMetrics', <String, dynamic>{});
+    return resp ?? <String, dynamic>{};
+  }
+
+  Future<void> resetMethodMetrics() async {
+    if (isIOS) {
+      return;
+    }
+    await _channel
+        .invokeMethod<void>('resetMethodMetrics', <String, dynamic>{});
+  }
+
+  /// Counters of the Android foreground service kept while calls are active:
+  /// `activeCalls`, `started`, and how many times it `starts`, `stops` and
+  /// `rebuilds` its notification. Only available on Android.
+  Future<Map<String, dynamic>> getForegroundServiceMetrics() async {
+    if (isIOS) {
+      return <String, dynamic>{};
+    }
+    final resp = await _channel.invokeMapMethod<String, dynamic>(
+        'getForegroundServiceMetrics', <String, dynamic>{});
+    return resp ?? <String, dynamic>{};
+  }
+
+  /// Outcome of the Android `prewarm` setup option: its `state` (`idle`,
+  /// `running` or `done`), `totalMs`, and for each step that ran its `name`,
+  /// `thread`, `durationMs` and whether it was `ok`. Only available on Android.
+  Future<Map<String, dynamic>> getPrewarmReport() async {
+    if (isIOS) {
+      return <String, dynamic>{};
+    }
+    final resp = await _channel.invokeMapMethod<String, dynamic>(
+        'getPrewarmReport', <String, dynamic>{});
+    return resp ?? <String, dynamic>{};
+  }
+
+  /// Round trips between `CallKeepCheckReachability` and [setReachable] on
+  /// Android: `count`, `meanMicros`, `p50Micros`, `p90Micros`, `p99Micros`,
+  /// `maxMicros`, the `checks`, `replies`, `lateReplies` and `timeouts`, and
+  /// the current `timeoutMs`. Only available on Android.
+  Future<Map<String, dynamic>> getReachabilityMetrics() async {
+    if (isIOS) {
+      return <String, dynamic>{};
+    }
+    final resp = await _channel.invokeMapMethod<String, dynamic>(
+        'getReachabilityMetrics', <String, dynamic>{});
+    return resp ?? <String, dynamic>{};
+  }
+
+  /// Wake lock taken on Android while the app is woken up for a call: whether
+  /// it is `held`, the `activeLeases`, how many `leases` were taken and how
+  /// many `expired`, the `leaseHeldMs` and `lockHeldMs` totals, and
+  /// `heldMsByCall` for the recent calls. Only available on Android.
+  Future<Map<String, dynamic>> getWakeLockMetrics() async {
+    if (isIOS) {
+      return <String, dynamic>{};
+    }
+    final resp = await _channel.invokeMapMethod<String, dynamic>(
+        'getWakeLockMetrics', <String, dynamic>{});
+    return resp ?? <String, dynamic>{};
+  }
+
+  /// Runs [handler] in a headless Flutter engine when the app is woken up
+  /// for a call on Android, with the `callUUID`, `handle` and `name` of the
+  /// call. [handler] must be a top-level or static function. The engine is
+  /// kept and reused for the next calls.
+  Future<void> registerBackgroundHandler(
+      Future<void> Function(Map<String, dynamic> call) handler) async {
+    if (isIOS) {
+      return;
+    }
+    final dispatcher =
+        PluginUtilities.getCallbackHandle(_backgroundCallbackDispatcher);
+    final callback = PluginUtilities.getCallbackHandle(handler);
+    if (dispatcher == null || callback == null) {
+      throw ArgumentError(
+          'The background handler must be a top-level or static function');
+    }
+    await _channel
+        .invokeMethod<void>('registerBackgroundHandler', <String, dynamic>{
+      'dispatcherHandle': dispatcher.toRawHandle(),
+      'handlerHandle': callback.toRawHandle(),
+    });
+  }
+
+  /// Delay between an incoming call and its ringtone playing on Android
+  /// (`count`, `meanMicros`, `p50Micros`, `p90Micros`, `p99Micros`,
+  /// `maxMicros`), and how many times the default ringtone had to be played
+  /// as a `fallbacks` because the shared player was not ready in time. Only
+  /// available on Android.
+  Future<Map<String, dynamic>> getRingtoneMetrics() async {
+    if (isIOS) {
+      return <String, dynamic>{};
+    }
+    final resp = await _channel.invokeMapMethod<String, dynamic>(
+        'getRingtoneMetrics', <String, dynamic>{});
+    return resp ?? <String, dynamic>{};
+  }
+
+  /// Start latency of the Android background engine (`count`, `meanMicros`,
+  /// `p50Micros`, `p90Micros`, `p99Micros`, `maxMicros`), whether it is
+  /// `ready`, its `engineStarts`, and the wake-ups handed to it (`deliveries`)
+  /// or waiting for it (`queued`). Only available on Android.
+  Future<Map<String, dynamic>> getBackgroundEngineMetrics() async {
+    if (isIOS) {
+      return <String, dynamic>{};
+    }
+    final resp = await _channel.invokeMapMethod<String, dynamic>(
+        'getBackgroundEngineMetrics', <String, dynamic>{});
+    return resp ?? <String, dynamic>{};
+  }
+
   Future<void> setReachable() async {
     if (isIOS) {
       return;
@@ -281,6 +450,20 @@ class FlutterCallkeep extends EventManager {
     return false;
   }
 
+  Future<ByteData?> _binaryEventListener(ByteData? message) async {
+    if (message == null) {
+      return null;
+    }
+    int? sequence;
+    for (final event in _eventDecoder.decode(message)) {
+      emit(event);
+      sequence = event.sequence ?? sequence;
+    }
+    await _ackEvents(sequence);
+    // A null reply tells the native side the message was dropped
+    return _binaryEventAck;
+  }
+
   Future<void> _setupIOS(Map<String, dynamic> options) async {
     if (options['appName'] == null) {
       throw Exception('CallKeep.setup: option "appName" is required');
@@ -293,6 +476,14 @@ class FlutterCallkeep extends EventManager {
         .invokeMethod<void>('setup', <String, dynamic>{'options': options});
   }
 
+  Future<void> _setupAndroid(Map<String, dynamic> options,
+      Map<String, dynamic>? androidOptions) async {
+    if (androidOptions == null) {
+      return await _setupIOS(options);
+    }
+    return await _setupIOS(<String, dynamic>{...options, ...androidOptions});
+  }
+
   Future<void> openPhoneAccounts() => _openPhoneAccounts();
 
   Future<void> _openPhoneAccounts() async {
@@ -371,47 +562,105 @@ class FlutterCallkeep extends EventManager {
 
   Future<void> eventListener(MethodCall call) async {
     print('[CallKeep] INFO: received event "${call.method}" ${call.arguments}');
-    final data = call.arguments as Map<dynamic, dynamic>;
-    switch (call.method) {
+    if (call.method == 'CallKeepEventBatch') {
+      // Events raised during the same native looper turn, in order
+      final batch = call.arguments as List<dynamic>;
+      int? sequence;
+      for (final dynamic entry in batch) {
+        final event = entry as Map<dynamic, dynamic>;
+        sequence = _handleEvent(event['event'] as String,
+                event['body'] as Map<dynamic, dynamic>) ??
+            sequence;
+      }
+      await _ackEvents(sequence);
+      return;
+    }
+    await _ackEvents(
+        _handleEvent(call.method, call.arguments as Map<dynamic, dynamic>));
+  }
+
+  int? _handleEvent(String eventName, Map<dynamic, dynamic> data) {
+    EventType? event;
+    switch (eventName) {
       case 'CallKeepDidReceiveStartCallAction':
-        emit(CallKeepDidReceiveStartCallAction.fromMap(data));
+        event = CallKeepDidReceiveStartCallAction.fromMap(data);
         break;
       case 'CallKeepPerformAnswerCallAction':
-        emit(CallKeepPerformAnswerCallAction.fromMap(data));
+        event = CallKeepPerformAnswerCallAction.fromMap(data);
         break;
       case 'CallKeepPerformEndCallAction':
-        emit(CallKeepPerformEndCallAction.fromMap(data));
+        event = CallKeepPerformEndCallAction.fromMap(data);
         break;
       case 'CallKeepDidActivateAudioSession':
-        emit(CallKeepDidActivateAudioSession());
+        event = CallKeepDidActivateAudioSession();
         break;
       case 'CallKeepDidDeactivateAudioSession':
-        emit(CallKeepDidDeactivateAudioSession());
+        event = CallKeepDidDeactivateAudioSession();
         break;
       case 'CallKeepDidDisplayIncomingCall':
-        emit(CallKeepDidDisplayIncomingCall.fromMap(data));
+        event = CallKeepDidDisplayIncomingCall.fromMap(data);
         break;
       case 'CallKeepDidPerformSetMutedCallAction':
-        emit(CallKeepDidPerformSetMutedCallAction.fromMap(data));
+        event = CallKeepDidPerformSetMutedCallAction.fromMap(data);
         break;
       case 'CallKeepDidToggleHoldAction':
-        emit(CallKeepDidToggleHoldAction.fromMap(data));
+        event = CallKeepDidToggleHoldAction.fromMap(data);
         break;
       case 'CallKeepDidPerformDTMFAction':
-        emit(CallKeepDidPerformDTMFAction.fromMap(data));
+        event = CallKeepDidPerformDTMFAction.fromMap(data);
         break;
       case 'CallKeepProviderReset':
-        emit(CallKeepProviderReset());
+        event = CallKeepProviderReset();
         break;
       case 'CallKeepCheckReachability':
-        emit(CallKeepCheckReachability());
+        event = CallKeepCheckReachability();
+        break;
+      case 'CallKeepDidFailToRegisterPhoneAccount':
+        event = CallKeepDidFailToRegisterPhoneAccount.fromMap(data);
         break;
       case 'CallKeepDidLoadWithEvents':
-        emit(CallKeepDidLoadWithEvents());
+        event = CallKeepDidLoadWithEvents();
         break;
       case 'CallKeepPushKitToken':
-        emit(CallKeepPushKitToken.fromMap(data));
+        event = CallKeepPushKitToken.fromMap(data);
         break;
     }
+    if (event == null) {
+      return null;
+    }
+    event.sequence = data['sequence'] as int?;
+    emit(event);
+    return event.sequence;
+  }
+
+  Future<void> _ackEvents(int? sequence) async {
+    if (sequence == null) {
+      return;
+    }
+    await _channel.invokeMethod<void>(
+        'ackEvents', <String, dynamic>{'sequence': sequence});
   }
 }
+
+/// Entry point of the Android background engine: runs the handler given to
+/// [FlutterCallkeep.registerBackgroundHandler] for each wake-up.
+@pragma('vm:entry-point')
+void _backgroundCallbackDispatcher() {
+  WidgetsFlutterBinding.ensureInitialized();
+  const channel = MethodChannel('FlutterCallKeep.Background');
+  channel.setMethodCallHandler((MethodCall call) async {
+    if (call.method != 'onWakeUp') {
+      return;
+    }
+    final args = Map<String, dynamic>.from(call.arguments as Map);
+    final handler = PluginUtilities.getCallbackFromHandle(
+            CallbackHandle.fromRawHandle(args['handlerHandle'] as int))
+        as Future<void> Function(Map<String, dynamic>)?;
+    if (handler == null) {
+      print('[CallKeep] WARNING: background handler not found');
+      return;
+    }
+    await handler(Map<String, dynamic>.from(args['call'] as Map));
+  });
+  channel.invokeMethod<void>('initialized');
+}
@@ -0,0 +1,65 @@
+/// A call command that can be sent with `FlutterCallkeep.batch`.
+class CallKeepCommand {
+  const CallKeepCommand(this.method, this.arguments);
+
+  CallKeepCommand.answerIncomingCall(String uuid)
+      : this('answerIncomingCall', <String, dynamic>{'uuid': uuid});
+
+  CallKeepCommand.endCall(String uuid)
+      : this('endCall', <String, dynamic>{'uuid': uuid});
+
+  CallKeepCommand.rejectCall(String uuid)
+      : this('rejectCall', <String, dynamic>{'uuid': uuid});
+
+  CallKeepCommand.reportEndCallWithUUID(String uuid, int reason)
+      : this('reportEndCallWithUUID',
+            <String, dynamic>{'uuid': uuid, 'reason': reason});
+
+  CallKeepCommand.sendDTMF(String uuid, String key)
+      : this('sendDTMF', <String, dynamic>{'uuid': uuid, 'key': key});
+
+  CallKeepCommand.setCurrentCallActive(String uuid)
+      : this('setCurrentCallActive', <String, dynamic>{'uuid': uuid});
+
+  CallKeepCommand.setMutedCall(String uuid, bool shouldMute)
+      : this('setMutedCall',
+            <String, dynamic>{'uuid': uuid, 'muted': shouldMute});
+
+  CallKeepCommand.setOnHold(String uuid, bool shouldHold)
+      : this('setOnHold', <String, dynamic>{'uuid': uuid, 'hold': shouldHold});
+
+  CallKeepCommand.updateDisplay(String uuid,
+      {required String displayName, required String handle})
+      : this('updateDisplay', <String, dynamic>{
+          'uuid': uuid,
+          'displayName': displayName,
+          'handle': handle
+        });
+
+  final String method;
+  final Map<String, dynamic> arguments;
+
+  Map<String, dynamic> toMap() =>
+      <String, dynamic>{'method': method, 'arguments': arguments};
+}
+
+/// The outcome of one [CallKeepCommand] of a batch.
+class CallKeepCommandResult {
+  CallKeepCommandResult.success(this.value)
+      : ok = true,
+        code = null,
+        message = null;
+  CallKeepCommandResult.error(this.code, this.message)
+      : ok = false,
+        value = null;
+  CallKeepCommandResult.fromMap(Map<dynamic, dynamic> arguments)
+      : ok = arguments['ok'] as bool,
+        value = arguments['value'],
+        code = arguments['code'] as String?,
+        message = arguments['message'] as String?;
+
+  final bool ok;
+  final Object? value;
+  final String? code;
+  final String? message;
+}
@@ -1,5 +1,15 @@
+import 'dart:convert';
+import 'dart:typed_data';
+
+import 'actions.dart';
+
 abstract class EventType {
   EventType();
+
+  /// Sequence number of an event replayed from the Android event journal,
+  /// null for events delivered live.
+  int? sequence;
+
   void sanityCheck() {}
 }
 
@@ -110,3 +120,148 @@ class EventManager {
     }
   }
 }
+
+/// Decodes the messages of the `FlutterCallKeep.EventBinary` channel.
+///
+/// This mirrors `CallEventCodec` on Android: a message is a sequence of
+/// records starting with a tag byte, and call uuids are sent once per session
+/// as a small integer id that later records refer to.
+class CallKeepEventDecoder {
+  static const int _tagDefineCall = 0;
+  static const int _tagStartCall = 1;
+  static const int _tagAnswerCall = 2;
+  static const int _tagEndCall = 3;
+  static const int _tagAudioSession = 4;
+  static const int _tagMuted = 5;
+  static const int _tagHold = 6;
+  static const int _tagDtmf = 7;
+  static const int _tagCheckReachability = 8;
+  static const int _tagSequence = 9;
+
+  static const int _kindUuid = 0;
+
+  final Map<int, String> _callIds = <int, String>{};
+
+  /// Forget the interned call ids, the native side does the same on `setup`.
+  void reset() => _callIds.clear();
+
+  List<EventType> decode(ByteData data) {
+    final events = <EventType>[];
+    final reader = _Reader(data);
+    int? sequence;
+    while (reader.hasMore) {
+      final tag = reader.byte();
+      if (tag == _tagSequence) {
+        sequence = reader.varint();
+        continue;
+      }
+      final count = events.length;
+      switch (tag) {
+        case _tagDefineCall:
+          final id = reader.varint();
+          _callIds[id] =
+              reader.byte() == _kindUuid ? reader.uuid() : reader.string()!;
+          break;
+        case _tagStartCall:
+          events.add(CallKeepDidReceiveStartCallAction()
+            ..callUUID = _callUUID(reader)
+            ..handle = reader.string()
+            ..name = reader.string());
+          break;
+        case _tagAnswerCall:
+          events.add(
+              CallKeepPerformAnswerCallAction()..callUUID = _callUUID(reader));
+          break;
+        case _tagEndCall:
+          events.add(
+              CallKeepPerformEndCallAction()..callUUID = _callUUID(reader));
+          break;
+        case _tagAudioSession:
+          events.add(CallKeepDidActivateAudioSession());
+          break;
+        case _tagMuted:
+          events.add(CallKeepDidPerformSetMutedCallAction()
+            ..callUUID = _callUUID(reader)
+            ..muted = reader.byte() != 0);
+          break;
+        case _tagHold:
+          events.add(CallKeepDidToggleHoldAction()
+            ..callUUID = _callUUID(reader)
+            ..hold = reader.byte() != 0);
+          break;
+        case _tagDtmf:
+          events.add(CallKeepDidPerformDTMFAction()
+            ..callUUID = _callUUID(reader)
+            ..digits = reader.ascii(reader.byte()));
+          break;
+        case _tagCheckReachability:
+          events.add(CallKeepCheckReachability());
+          break;
+        default:
+          throw FormatException('Unknown CallKeep event tag $tag');
+      }
+      if (events.length > count) {
+        events.last.sequence = sequence;
+        sequence = null;
+      }
+    }
+    return events;
+  }
+
+  String? _callUUID(_Reader reader) {
+    final id = reader.varint();
+    return id == 0 ? null : _callIds[id];
+  }
+}
+
+class _Reader {
+  _Reader(this._data);
+
+  final ByteData _data;
+  int _offset = 0;
+
+  bool get hasMore => _offset < _data.lengthInBytes;
+
+  int byte() => _data.getUint8(_offset++);
+
+  int varint() {
+    var value = 0;
+    var shift = 0;
+    int current;
+    do {
+      current = byte();
+      value |= (current & 0x7F) << shift;
+      shift += 7;
+    } while ((current & 0x80) != 0);
+    return value;
+  }
+
+  String? string() {
+    final length = varint();
+    if (length == 0) {
+      return null;
+    }
+    final bytes = Uint8List.view(
+        _data.buffer, _data.offsetInBytes + _offset, length - 1);
+    _offset += length - 1;
+    return utf8.decode(bytes);
+  }
+
+  String ascii(int count) {
+    final bytes =
+        Uint8List.view(_data.buffer, _data.offsetInBytes + _offset, count);
+    _offset += count;
+    return String.fromCharCodes(bytes);
+  }
+
+  String uuid() {
+    final buffer = StringBuffer();
+    for (var i = 0; i < 16; i++) {
+      if (i == 4 || i == 6 || i == 8 || i == 10) {
+        buffer.write('-');
+      }
+      buffer.write(byte().toRadixString(16).padLeft(2, '0'));
+    }
+    return buffer.toString();
+  }
+}